@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prepared statements and rows built without a cluster, for benchmarks
+ * that run Rainier's client-side code against a stub Session.  The
+ * constructors involved are package-private in the driver, which is why
+ * this class lives in the driver's package.
+ */
+public class BenchmarkStatements {
+    private static final ProtocolVersion protocolVersion = ProtocolVersion.V4;
+
+    public static ColumnDefinitions columns(String table, String[] names, DataType[] types) {
+        ColumnDefinitions.Definition[] definitions = new ColumnDefinitions.Definition[names.length];
+        for (int i = 0; i < names.length; i++)
+            definitions[i] = new ColumnDefinitions.Definition("ks", table, names[i], types[i]);
+        return new ColumnDefinitions(definitions, CodecRegistry.DEFAULT_INSTANCE);
+    }
+
+    /**
+     * A prepared statement with the given bind markers and result columns
+     * (null for none).  Only what binding and ChainPlan use is implemented;
+     * everything else returns null, false or 0.
+     */
+    public static PreparedStatement prepared(final String query, final ColumnDefinitions variables,
+                                             ColumnDefinitions results) {
+        final PreparedId preparedId = new PreparedId(new PreparedId.PreparedMetadata(null, variables),
+                                                     new PreparedId.PreparedMetadata(null, results),
+                                                     new int[0], protocolVersion);
+        return (PreparedStatement)Proxy.newProxyInstance(BenchmarkStatements.class.getClassLoader(),
+                                                         new Class<?>[]{PreparedStatement.class},
+                                                         new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                    case "getPreparedId":
+                        return preparedId;
+                    case "getVariables":
+                        return variables;
+                    case "getQueryString":
+                        return query;
+                    case "getCodecRegistry":
+                        return CodecRegistry.DEFAULT_INSTANCE;
+                    case "bind":
+                        return new BoundStatement((PreparedStatement)proxy);
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return query;
+                    }
+                    Class<?> type = method.getReturnType();
+                    if (boolean.class == type)
+                        return false;
+                    if (int.class == type)
+                        return 0;
+                    if (long.class == type)
+                        return 0L;
+                    return null;
+                }
+            });
+    }
+
+    /** A row of the given columns, serialized the way the driver would receive it. */
+    public static Row row(ColumnDefinitions columns, Object... values) {
+        List<ByteBuffer> data = new ArrayList<>(values.length);
+        for (int i = 0; i < values.length; i++) {
+            TypeCodec<Object> codec = CodecRegistry.DEFAULT_INSTANCE.codecFor(columns.getType(i));
+            data.add(codec.serialize(values[i], protocolVersion));
+        }
+        return ArrayBackedRow.fromData(columns, null, protocolVersion, data);
+    }
+}
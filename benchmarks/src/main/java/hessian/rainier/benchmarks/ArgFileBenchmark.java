@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier.benchmarks;
+
+import hessian.rainier.ArgTable;
+import hessian.rainier.RandomStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of picking an argfile line with each key distribution and decoding
+ * it from the mapped file.  The file is generated once per trial, with
+ * one random 20-digit key per line.  Run with -t to see that threads do
+ * not contend (except on the shared cursor of sequential).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ArgFileBenchmark {
+    @Param({"1000000"})
+    public int numLines;
+
+    @Param({"uniform", "zipf(0.99)", "hotspot(0.9,0.1)", "gaussian", "sequential"})
+    public String distribution;
+
+    private File file;
+    private ArgTable argTable;
+
+    @State(Scope.Thread)
+    public static class Worker {
+        RandomStream random = new RandomStream(0, Thread.currentThread().getId());
+        Object[] env = new Object[1];
+        int[] slots = new int[]{0};
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = File.createTempFile("rainier-argfile", ".csv");
+        RandomStream random = new RandomStream(1, 0);
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < numLines; i++) {
+                writer.write(String.format("%020d", random.nextLong() & Long.MAX_VALUE));
+                writer.newLine();
+            }
+        }
+        argTable = ArgTable.column("pkey", file.getPath(), distribution);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".idx").delete();
+    }
+
+    @Benchmark
+    public Object sample(Worker worker) {
+        argTable.fill(worker.env, worker.slots, worker.random);
+        return worker.env[0];
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier.benchmarks;
+
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.TypeCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What -bindMode text pays per value: formatting a column as a CQL
+ * literal and parsing it again, for common CQL types.  deserialize and
+ * serialize are there for comparison with what -bindMode raw avoids
+ * altogether.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"int", "bigint", "double", "text", "uuid", "timestamp", "decimal"})
+    public String type;
+
+    private TypeCodec<Object> codec;
+    private Object value;
+    private String literal;
+    private ByteBuffer bytes;
+
+    @Setup
+    public void setup() {
+        DataType dataType;
+        switch (type) {
+        case "int":       dataType = DataType.cint();      value = 123456;                                break;
+        case "bigint":    dataType = DataType.bigint();    value = 1234567890123L;                        break;
+        case "double":    dataType = DataType.cdouble();   value = 12345.6789;                            break;
+        case "text":      dataType = DataType.text();      value = "the quick brown fox's key";          break;
+        case "uuid":      dataType = DataType.uuid();      value = UUID.randomUUID();                     break;
+        case "timestamp": dataType = DataType.timestamp(); value = new Date();                            break;
+        case "decimal":   dataType = DataType.decimal();   value = new BigDecimal("12345678.901234");     break;
+        default:          throw new IllegalArgumentException("Unknown type: " + type);
+        }
+        codec = CodecRegistry.DEFAULT_INSTANCE.codecFor(dataType);
+        literal = codec.format(value);
+        bytes = codec.serialize(value, ProtocolVersion.V4);
+    }
+
+    @Benchmark
+    public String format() {
+        return codec.format(value);
+    }
+
+    @Benchmark
+    public Object parse() {
+        return codec.parse(literal);
+    }
+
+    @Benchmark
+    public Object formatAndParse() {
+        return codec.parse(codec.format(value));
+    }
+
+    @Benchmark
+    public Object deserialize() {
+        return codec.deserialize(bytes.duplicate(), ProtocolVersion.V4);
+    }
+
+    @Benchmark
+    public ByteBuffer serialize() {
+        return codec.serialize(value, ProtocolVersion.V4);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier.benchmarks;
+
+import com.datastax.loader.futures.ActionFutureList;
+import com.datastax.loader.futures.ActionFutureSet;
+import com.datastax.loader.futures.FutureManager;
+import com.datastax.loader.futures.NullFutureAction;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Throughput of adding futures to an ActionFutureSet (callback per future,
+ * bounded by a semaphore) and an ActionFutureList (batches of futures
+ * drained in order), and completing them.  Each invocation adds a batch of
+ * pending futures and then completes them all.  The set releases its
+ * permits from the completion callbacks, and the list drains the batch on
+ * the first add of the next invocation, so both go through their full
+ * add / complete / release cycle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FutureManagerBenchmark {
+    private static final int batchSize = 1000;
+
+    @Param({"set", "list"})
+    public String manager;
+
+    private ResultSet resultSet = new StubSession.StubResultSet(Collections.emptyList());
+    private PendingFuture[] futures = new PendingFuture[batchSize];
+    private FutureManager futureManager;
+
+    /** A future completed by the benchmark rather than by a driver thread. */
+    static class PendingFuture extends AbstractFuture<ResultSet> implements ResultSetFuture {
+        void complete(ResultSet rs) {
+            set(rs);
+        }
+
+        public ResultSet getUninterruptibly() {
+            try {
+                return Uninterruptibles.getUninterruptibly(this);
+            }
+            catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        public ResultSet getUninterruptibly(long timeout, TimeUnit unit) throws TimeoutException {
+            try {
+                return Uninterruptibles.getUninterruptibly(this, timeout, unit);
+            }
+            catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void newManager() {
+        futureManager = "set".equals(manager)
+            ? new ActionFutureSet(batchSize, 10, Long.MAX_VALUE, new NullFutureAction())
+            : new ActionFutureList(batchSize, 10, Long.MAX_VALUE, new NullFutureAction());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(batchSize)
+    public long addAndComplete() {
+        for (int i = 0; i < batchSize; i++) {
+            futures[i] = new PendingFuture();
+            futureManager.add(futures[i], "line");
+        }
+        for (int i = 0; i < batchSize; i++)
+            futures[i].complete(resultSet);
+        return futureManager.getNumInserted();
+    }
+}
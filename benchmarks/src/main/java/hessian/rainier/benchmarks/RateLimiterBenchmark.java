@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier.benchmarks;
+
+import hessian.rainier.RateLimiter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of taking a permit when the rate is high enough that nobody has to
+ * sleep, so what is left is the coordination between threads.  Rainier's
+ * lock-free RateLimiter is compared with Guava's RateLimiter plus the
+ * synchronized counter Rainier used to keep next to it.  Run with
+ * different thread counts to see how each one scales, e.g.
+ * -t 1, -t 8, -t 32.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RateLimiterBenchmark {
+    @Param({"100000000"})
+    public double rate;
+
+    private RateLimiter rainierLimiter;
+    private com.google.common.util.concurrent.RateLimiter guavaLimiter;
+    private AtomicLong guavaCount;
+
+    @Setup
+    public void setup() {
+        rainierLimiter = new RateLimiter(rate);
+        guavaLimiter = com.google.common.util.concurrent.RateLimiter.create(rate);
+        guavaCount = new AtomicLong(0);
+    }
+
+    @Benchmark
+    public void rainierAcquire() {
+        rainierLimiter.acquire();
+    }
+
+    @Benchmark
+    public long guavaAcquire() {
+        guavaLimiter.acquire();
+        synchronized (this) {
+            return guavaCount.incrementAndGet();
+        }
+    }
+}
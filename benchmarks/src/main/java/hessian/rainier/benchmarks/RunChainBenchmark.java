@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier.benchmarks;
+
+import hessian.rainier.ArgumentSource;
+import hessian.rainier.ChainLog;
+import hessian.rainier.ChainPlan;
+import hessian.rainier.ChainStats;
+import hessian.rainier.RainierTask;
+import hessian.rainier.RandomStream;
+import hessian.rainier.RawValueBinder;
+import hessian.rainier.TextValueBinder;
+import hessian.rainier.ValueBinder;
+
+import com.datastax.driver.core.BenchmarkStatements;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.Row;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client-side cost of one chain: binding each statement, handing every
+ * row to the next statement, and recording stats, against a session that
+ * answers instantly.  The first statement returns fanOut rows of (uuid,
+ * text), and each one binds the second statement, which returns a row of
+ * (bigint, timestamp) that nothing reads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RunChainBenchmark {
+    @Param({"text", "raw"})
+    public String bindMode;
+
+    @Param({"1", "10", "100"})
+    public int fanOut;
+
+    private RainierTask task;
+    private Object[] env;
+
+    @Setup
+    public void setup() {
+        ColumnDefinitions vars1 = BenchmarkStatements.columns("a", new String[]{"pkey_in"},
+                                                               new DataType[]{DataType.cint()});
+        ColumnDefinitions results1 = BenchmarkStatements.columns("a", new String[]{"id_1", "name_1"},
+                                                                 new DataType[]{DataType.uuid(), DataType.text()});
+        ColumnDefinitions vars2 = BenchmarkStatements.columns("b", new String[]{"id_1", "name_1"},
+                                                              new DataType[]{DataType.uuid(), DataType.text()});
+        ColumnDefinitions results2 = BenchmarkStatements.columns("b", new String[]{"v", "ts"},
+                                                                 new DataType[]{DataType.bigint(), DataType.timestamp()});
+        PreparedStatement ps1 = BenchmarkStatements.prepared(
+            "SELECT id AS id_1, name AS name_1 FROM ks.a WHERE pkey = :pkey_in", vars1, results1);
+        PreparedStatement ps2 = BenchmarkStatements.prepared(
+            "SELECT v, ts FROM ks.b WHERE id = :id_1 AND name = :name_1", vars2, results2);
+
+        StubSession session = new StubSession();
+        List<Row> rows1 = new ArrayList<>(fanOut);
+        for (int i = 0; i < fanOut; i++)
+            rows1.add(BenchmarkStatements.row(results1, UUID.randomUUID(), "name-" + i));
+        session.setRows(ps1, rows1);
+        session.setRows(ps2, Collections.singletonList(BenchmarkStatements.row(results2, 42L, new Date())));
+
+        ChainPlan plan = ChainPlan.compile(Arrays.asList(ps1, ps2), Collections.singletonList("pkey_in"),
+                                           CodecRegistry.DEFAULT_INSTANCE, ProtocolVersion.V4);
+        ValueBinder valueBinder = "raw".equals(bindMode)
+            ? new RawValueBinder(CodecRegistry.DEFAULT_INSTANCE, ProtocolVersion.V4)
+            : new TextValueBinder();
+        ArgumentSource argumentSource = new ArgumentSource(plan, Collections.singletonMap("pkey_in", "42"),
+                                                           Collections.emptyList());
+        ChainLog chainLog = new ChainLog(ChainLog.Level.SILENT, 1, 1, System.out);
+        task = new RainierTask(session, valueBinder, plan, argumentSource, new ChainStats(plan.numSteps()),
+                               chainLog, 0, 1, 1, 0);
+        env = argumentSource.choose(new RandomStream(0, 0));
+    }
+
+    @Benchmark
+    public void runChain() {
+        task.runChain(0, env, null, 0);
+    }
+}
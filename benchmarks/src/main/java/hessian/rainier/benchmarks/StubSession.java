@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier.benchmarks;
+
+import hessian.rainier.EnhancedSession;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Statement;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A Session that answers every bound statement at once, with the rows
+ * registered for its prepared statement, so that benchmarks measure only
+ * the client side.
+ */
+public class StubSession extends EnhancedSession {
+    private Map<PreparedStatement,List<Row>> rows = new IdentityHashMap<>();
+
+    public StubSession() {
+        super(null);
+    }
+
+    public void setRows(PreparedStatement preparedStatement, List<Row> statementRows) {
+        rows.put(preparedStatement, statementRows);
+    }
+
+    @Override
+    public ResultSet execute(Statement statement) {
+        List<Row> statementRows = rows.get(((BoundStatement)statement).preparedStatement());
+        return new StubResultSet((null == statementRows) ? Collections.<Row>emptyList() : statementRows);
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(Statement statement) {
+        return new CompletedResultSetFuture(execute(statement));
+    }
+
+    /** A single, fully fetched page of rows. */
+    public static class StubResultSet implements ResultSet {
+        private List<Row> rows;
+        private Iterator<Row> iterator;
+
+        public StubResultSet(List<Row> rows) {
+            this.rows = rows;
+            iterator = rows.iterator();
+        }
+
+        public Row one() {
+            return iterator.hasNext() ? iterator.next() : null;
+        }
+
+        public ColumnDefinitions getColumnDefinitions() {
+            return null;
+        }
+
+        public boolean wasApplied() {
+            return true;
+        }
+
+        public boolean isExhausted() {
+            return !iterator.hasNext();
+        }
+
+        public boolean isFullyFetched() {
+            return true;
+        }
+
+        // Only right before iteration starts, which is when Rainier asks
+        public int getAvailableWithoutFetching() {
+            return rows.size();
+        }
+
+        public ListenableFuture<ResultSet> fetchMoreResults() {
+            return new CompletedResultSetFuture(this);
+        }
+
+        public List<Row> all() {
+            return rows;
+        }
+
+        public Iterator<Row> iterator() {
+            return iterator;
+        }
+
+        public ExecutionInfo getExecutionInfo() {
+            return null;
+        }
+
+        public List<ExecutionInfo> getAllExecutionInfo() {
+            return Collections.singletonList(null);
+        }
+    }
+
+    /** A future that is already complete. */
+    public static class CompletedResultSetFuture extends AbstractFuture<ResultSet> implements ResultSetFuture {
+        public CompletedResultSetFuture(ResultSet rs) {
+            set(rs);
+        }
+
+        public ResultSet getUninterruptibly() {
+            try {
+                return Uninterruptibles.getUninterruptibly(this);
+            }
+            catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        public ResultSet getUninterruptibly(long timeout, TimeUnit unit) throws TimeoutException {
+            try {
+                return Uninterruptibles.getUninterruptibly(this, timeout, unit);
+            }
+            catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+}
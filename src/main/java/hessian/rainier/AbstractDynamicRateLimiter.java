@@ -15,8 +15,10 @@
  */
 package hessian.rainier;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 public abstract class AbstractDynamicRateLimiter extends RateLimiter {
-    protected long lastCheck = 0;
+    protected AtomicLong lastCheck = new AtomicLong(0);
     protected long howOften;
     protected double lastStat;
     protected double maxStat;
@@ -52,11 +54,12 @@ public abstract class AbstractDynamicRateLimiter extends RateLimiter {
         this.acquire(1);
     }
 
-    public synchronized void acquire(int permits) {
+    // Only the thread that wins the compare-and-set adjusts the rate; the rest go straight to acquiring
+    public void acquire(int permits) {
         long currTime = System.currentTimeMillis();
-        if (currTime - lastCheck > howOften) {
+        long last = lastCheck.get();
+        if ((currTime - last > howOften) && lastCheck.compareAndSet(last, currTime)) {
             adjustRate();
-            lastCheck = currTime;
         }
         super.acquire(permits);
     }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+
+/**
+ * The agent side of a distributed run.  An agent connects to the
+ * coordinator, gets its LoadShare, says when it is ready, starts at the
+ * moment the coordinator gives, and sends back its counts and histograms.
+ * While it runs, it stops early if the coordinator says so or goes away.
+ */
+public class Agent {
+    static final int READY = 0x52454459;
+    static final int STOP = 0x53544f50;
+
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private volatile boolean done = false;
+
+    private Agent(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /** Connects to host:port, retrying for up to timeoutMillis while the coordinator is not listening yet. */
+    public static Agent connect(String hostPort, long timeoutMillis) throws IOException, InterruptedException {
+        int colon = hostPort.lastIndexOf(':');
+        String host = hostPort.substring(0, colon);
+        int port = Integer.parseInt(hostPort.substring(colon + 1));
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            try {
+                return new Agent(new Socket(host, port));
+            }
+            catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+                Thread.sleep(500);
+            }
+        }
+    }
+
+    public LoadShare receiveShare() throws IOException {
+        return LoadShare.readFrom(in);
+    }
+
+    /**
+     * Tells the coordinator this agent is ready, and waits until the start
+     * it gives back.  From then on, onStop runs if the coordinator stops
+     * the run or the connection to it is lost.
+     */
+    public void awaitStart(Runnable onStop) throws IOException, InterruptedException {
+        out.writeInt(READY);
+        out.flush();
+        long startAt = in.readLong();
+        Thread listener = new Thread(() -> {
+                try {
+                    if (STOP == in.readInt())
+                        System.err.println("Coordinator stopped the run");
+                }
+                catch (IOException e) {
+                    if (!done)
+                        System.err.println("Lost the coordinator (" + e.getMessage() + "), stopping");
+                }
+                if (!done)
+                    onStop.run();
+            }, "coordinator-listener");
+        listener.setDaemon(true);
+        listener.start();
+        sleepUntil(startAt);
+    }
+
+    /** Sends the results of the measured run and disconnects. */
+    public void sendResults(long numIterations, long numChains, long elapsedMillis, ChainStats chainStats)
+        throws IOException {
+        done = true;
+        out.writeLong(numIterations);
+        out.writeLong(numChains);
+        out.writeLong(elapsedMillis);
+        chainStats.writeTo(out);
+        out.flush();
+        socket.close();
+    }
+
+    static void sleepUntil(long millis) throws InterruptedException {
+        long remaining;
+        while ((remaining = millis - System.currentTimeMillis()) > 0)
+            Thread.sleep(remaining);
+    }
+}
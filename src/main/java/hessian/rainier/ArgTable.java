@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * A mapped argfile that supplies one or more arguments, sampled a row at
+ * a time by its KeyDistribution.  An -argfile is a single column named on
+ * the command line.  An -argtable is delimited, with a header line that
+ * names its columns, so one row fills several arguments with values that
+ * belong together.
+ */
+public class ArgTable {
+    private String[] names;
+    private MappedArgFile file;
+    private int firstRow;
+    private Pattern delimiter;
+    private KeyDistribution distribution;
+
+    private ArgTable(String[] names, MappedArgFile file, int firstRow, Pattern delimiter, String distribution) {
+        this.names = names;
+        this.file = file;
+        this.firstRow = firstRow;
+        this.delimiter = delimiter;
+        this.distribution = KeyDistribution.parse(distribution, numRows());
+    }
+
+    public static ArgTable column(String name, String fname, String distribution) throws IOException {
+        return new ArgTable(new String[]{name}, MappedArgFile.open(fname), 0, null, distribution);
+    }
+
+    public static ArgTable withHeader(String fname, String delimiter, String distribution) throws IOException {
+        MappedArgFile file = MappedArgFile.open(fname);
+        if (file.numLines() < 2)
+            throw new IllegalArgumentException("Argtable " + fname + " has a header but no rows");
+        Pattern pattern = Pattern.compile(Pattern.quote(delimiter));
+        String[] names = pattern.split(file.get(0), -1);
+        for (int i = 0; i < names.length; i++)
+            names[i] = names[i].trim();
+        return new ArgTable(names, file, 1, pattern, distribution);
+    }
+
+    public String[] getNames() {
+        return names;
+    }
+
+    public long numRows() {
+        return file.numLines() - firstRow;
+    }
+
+    /** Samples a row and stores its values in env at the given slots, one per name. */
+    public void fill(Object[] env, int[] slots, RandomStream random) {
+        String line = file.get(firstRow + distribution.next(random));
+        if (null == delimiter) {
+            env[slots[0]] = line;
+            return;
+        }
+        String[] values = delimiter.split(line, -1);
+        if (values.length != names.length)
+            throw new IllegalArgumentException("Row has " + values.length + " values but the header names "
+                                               + names.length + " columns " + Arrays.toString(names) + ": " + line);
+        for (int i = 0; i < values.length; i++)
+            env[slots[i]] = values[i];
+    }
+}
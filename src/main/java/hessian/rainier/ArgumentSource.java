@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the starting variables of an iteration: the fixed -args values
+ * plus one row from each argfile and argtable, chosen by its
+ * KeyDistribution, already placed in their ChainPlan slots.
+ */
+public class ArgumentSource {
+    private Object[] template;
+    private ArgTable[] tables;
+    private int[][] tableSlots;
+
+    public ArgumentSource(ChainPlan plan, Map<String,String> args, List<ArgTable> argTables) {
+        template = plan.newEnv();
+        for (Map.Entry<String,String> e : args.entrySet())
+            template[plan.getSlot(e.getKey())] = e.getValue();
+        tables = argTables.toArray(new ArgTable[argTables.size()]);
+        tableSlots = new int[tables.length][];
+        for (int t = 0; t < tables.length; t++) {
+            String[] names = tables[t].getNames();
+            tableSlots[t] = new int[names.length];
+            for (int i = 0; i < names.length; i++)
+                tableSlots[t][i] = plan.getSlot(names[i]);
+        }
+    }
+
+    public Object[] choose(RandomStream random) {
+        Object[] env = template.clone();
+        for (int t = 0; t < tables.length; t++)
+            tables[t].fill(env, tableSlots[t], random);
+        return env;
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import com.datastax.driver.core.*;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs chains with executeAsync() instead of blocking on every step.
+ * Each child step is issued from the callback of its parent as soon as
+ * the parent's rows arrive, so a handful of callback threads can keep
+ * many chains in flight.  The number of concurrent chains is bounded by
+ * maxChains.
+ */
+public class AsyncChainExecutor {
+    private Session session;
+    private ValueBinder valueBinder;
+    private ChainPlan plan;
+    private ArgumentSource argumentSource;
+    private ChainStats chainStats;
+    private ChainLog chainLog;
+    private OpenLoopSchedule schedule = null;
+    private ResultCache resultCache = null;
+    private long masterSeed = 0;
+    private RandomStream random = new RandomStream(0, 0);
+    private int minRepeat;
+    private int maxRepeat;
+    private int maxChains;
+    private Semaphore available;
+    private ExecutorService executor;
+    private AtomicLong numChains;
+    private AtomicLong numErrors;
+
+    public AsyncChainExecutor(Session session, ValueBinder valueBinder, ChainPlan plan,
+                              ArgumentSource argumentSource, ChainStats chainStats, ChainLog chainLog,
+                              int minRepeat, int maxRepeat, int numThreads, int maxChains) {
+        this.session = session;
+        this.valueBinder = valueBinder;
+        this.plan = plan;
+        this.argumentSource = argumentSource;
+        this.chainStats = chainStats;
+        this.chainLog = chainLog;
+        this.minRepeat = minRepeat;
+        this.maxRepeat = maxRepeat;
+        this.maxChains = maxChains;
+        available = new Semaphore(maxChains);
+        executor = Executors.newFixedThreadPool(numThreads);
+        numChains = new AtomicLong(0);
+        numErrors = new AtomicLong(0);
+    }
+
+    /**
+     * Starts iterations at the times given by schedule instead of as soon
+     * as a chain slot is free.
+     */
+    public void setSchedule(OpenLoopSchedule schedule) {
+        this.schedule = schedule;
+    }
+
+    /** Reads the rows of cached statements from resultCache when it has them. */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /** Seeds the random stream of every iteration from masterSeed and the iteration number. */
+    public void setMasterSeed(long masterSeed) {
+        this.masterSeed = masterSeed;
+    }
+
+    public long run(RunLimit limit) throws InterruptedException {
+        for (long iter = 0; limit.more(iter); iter++) {
+            long globalIter = limit.globalIteration(iter);
+            long intended = (null == schedule) ? 0 : schedule.awaitStart(globalIter);
+            available.acquire();
+            startIteration(globalIter, intended);
+        }
+        // Drain
+        if (!available.tryAcquire(maxChains, limit.getDrainTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+            System.err.println((maxChains - available.availablePermits())
+                               + " iterations were still running at the end of the drain timeout");
+            executor.shutdownNow();
+            return numChains.get();
+        }
+        available.release(maxChains);
+        executor.shutdown();
+        executor.awaitTermination(limit.getDrainTimeoutMillis(), TimeUnit.MILLISECONDS);
+        return numChains.get();
+    }
+
+    public long getNumErrors() {
+        return numErrors.get();
+    }
+
+    // Iterations are started one at a time by run(), so they can share one stream
+    private void startIteration(long iter, long intended) {
+        random.reseed(masterSeed, iter);
+        Object[] env = argumentSource.choose(random);
+        int numRepeat = random.nextInt(maxRepeat - minRepeat + 1) + minRepeat;
+        new Chain(iter, env, numRepeat, intended).start();
+    }
+
+    /**
+     * One iteration: the same chain repeated numRepeat times, one repeat
+     * after another.  pending counts the steps of the current repeat that
+     * have been issued but not yet finished.
+     */
+    private class Chain {
+        private long taskNum;
+        private Object[] env;
+        private int numRepeat;
+        private int repeat = 0;
+        private long startNanos;
+        private long intendedNanos;
+        private boolean tracing;
+        private AtomicInteger pending = new AtomicInteger(0);
+
+        Chain(long taskNum, Object[] env, int numRepeat, long intendedNanos) {
+            this.taskNum = taskNum;
+            this.env = env;
+            this.numRepeat = numRepeat;
+            this.intendedNanos = intendedNanos;
+            tracing = chainLog.traces(taskNum);
+        }
+
+        void start() {
+            if (tracing)
+                chainLog.trace("\n[%5d] Iter %d repeat %d", taskNum, taskNum, repeat);
+            startNanos = System.nanoTime();
+            runStep(0, env, null, null);
+        }
+
+        // parent is the subtree of the step whose row this one runs for, or null for the first step
+        void runStep(int step, Object[] parentEnv, Row row, Subtree parent) {
+            if (step >= plan.numSteps())
+                return;
+            if (null != parent)
+                parent.childStarted();
+            // The step is running until stepDone(), whether it succeeds, fails or hits the cache
+            pending.incrementAndGet();
+            // A step with children is a subtree of its own, which its parent then waits for
+            Subtree node = (step + 1 < plan.numSteps()) ? new Subtree(step, parent) : null;
+            Subtree owner = (null != node) ? node : parent;
+            Object[] myenv;
+            List<Row> cachedRows = null;
+            try {
+                ChainPlan.Step ps = plan.getStep(step);
+                myenv = (null == row) ? parentEnv : valueBinder.extend(plan.getStep(step - 1), parentEnv, row);
+                if (tracing) {
+                    chainLog.trace("[%5d] Running: %s", taskNum, ps.getPreparedStatement().getQueryString());
+                    chainLog.trace("[%5d] With variables: %s", taskNum, ChainLog.variables(plan, myenv));
+                }
+                List<Object> cacheKey = null;
+                if ((null != resultCache) && resultCache.caches(step)) {
+                    cacheKey = resultCache.key(ps, myenv);
+                    cachedRows = resultCache.get(step, cacheKey);
+                }
+                if (null == cachedRows) {
+                    BoundStatement bs = valueBinder.bind(ps, myenv);
+                    chainStats.recordExecution(step);
+                    Futures.addCallback(session.executeAsync(bs), new StepCallback(step, myenv, cacheKey, node, owner),
+                                        executor);
+                    return;
+                }
+            }
+            catch (RuntimeException e) {
+                stepFailed(step, e, owner);
+                return;
+            }
+            // A hit finishes at once, so the chain still ends when its last step does
+            if (tracing)
+                chainLog.trace("[%5d] Cache hit: %d rows", taskNum, cachedRows.size());
+            if (null != node)
+                node.width = cachedRows.size();
+            for (Row r : cachedRows)
+                runStep(step + 1, myenv, r, node);
+            stepDone(owner);
+        }
+
+        // A step that failed, whether binding it or running it, still finishes
+        void stepFailed(int step, Throwable t, Subtree owner) {
+            numErrors.incrementAndGet();
+            System.err.println(String.format("[%5d] Error running %s: %s", taskNum,
+                    plan.getStep(step).getPreparedStatement().getQueryString(), t.getMessage()));
+            stepDone(owner);
+        }
+
+        // Called when a step's own request is done, every page of it
+        void stepDone(Subtree owner) {
+            if (null != owner)
+                owner.done();
+            if (0 != pending.decrementAndGet())
+                return;
+            long end = System.nanoTime();
+            chainStats.recordChainLatency(end - startNanos);
+            if (null != schedule) {
+                // Only the first repeat is scheduled; later ones start when the previous one ends
+                chainStats.recordCorrectedChainLatency(end - ((0 == repeat) ? intendedNanos : startNanos));
+            }
+            numChains.incrementAndGet();
+            repeat++;
+            if (repeat < numRepeat)
+                start();
+            else
+                available.release();
+        }
+
+        /**
+         * One execution of a step that has children.  It is done once its
+         * own request and the subtrees under all of its rows are, and then
+         * its latency and width (the number of rows) are recorded.  pending
+         * counts its own request and every child started.
+         */
+        private class Subtree {
+            private int step;
+            private Subtree parent;
+            private long startNanos = System.nanoTime();
+            // Only set by the step's own callbacks, which run one at a time
+            private long width = 0;
+            private AtomicInteger pending = new AtomicInteger(1);
+
+            Subtree(int step, Subtree parent) {
+                this.step = step;
+                this.parent = parent;
+            }
+
+            void childStarted() {
+                pending.incrementAndGet();
+            }
+
+            void done() {
+                if (0 != pending.decrementAndGet())
+                    return;
+                chainStats.recordSubtree(step, System.nanoTime() - startNanos, width);
+                if (null != parent)
+                    parent.done();
+            }
+        }
+
+        private class StepCallback implements FutureCallback<ResultSet> {
+            private int step;
+            private Object[] myenv;
+            private List<Object> cacheKey;
+            private Subtree node;
+            private Subtree owner;
+            // Every page's rows, to be cached once the last page arrives
+            private List<Row> rows;
+
+            StepCallback(int step, Object[] myenv, List<Object> cacheKey, Subtree node, Subtree owner) {
+                this.step = step;
+                this.myenv = myenv;
+                this.cacheKey = cacheKey;
+                this.node = node;
+                this.owner = owner;
+                rows = (null == cacheKey) ? null : new ArrayList<>();
+            }
+
+            // Called once per page.  The page's rows are copied out before
+            // the next page is requested, so only one callback ever reads
+            // the ResultSet, and the next page is fetched while this one's
+            // children start.
+            @Override
+            public void onSuccess(ResultSet rs) {
+                List<Row> page;
+                boolean held = false;
+                try {
+                    int numRows = rs.getAvailableWithoutFetching();
+                    chainStats.recordPage(step, numRows);
+                    page = new ArrayList<>(numRows);
+                    for (int remaining = numRows; remaining > 0; remaining--)
+                        page.add(rs.one());
+                    if (null != node)
+                        node.width += numRows;
+                    if (null != rows)
+                        rows.addAll(page);
+                    if (!rs.isFullyFetched()) {
+                        // The later pages may finish first, so hold the step open until this page's children have started
+                        pending.incrementAndGet();
+                        if (null != owner)
+                            owner.childStarted();
+                        held = true;
+                        Futures.addCallback(rs.fetchMoreResults(), this, executor);
+                    }
+                    else if (null != rows)
+                        resultCache.put(step, cacheKey, rows);
+                }
+                catch (RuntimeException e) {
+                    onFailure(e);
+                    if (held)
+                        stepDone(owner);
+                    return;
+                }
+                for (Row row : page)
+                    runStep(step + 1, myenv, row, node);
+                stepDone(owner);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                stepFailed(step, t, owner);
+            }
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.TableMetadata;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.HdrHistogram.Recorder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Groups registered write statements into UNLOGGED batches, or COUNTER
+ * batches for counter updates.  Writes are grouped by partition key, or
+ * by the set of replicas that own the partition, and a group is sent once
+ * it holds batchSize writes or once its first write has waited
+ * lingerMicros, whichever comes first.  A group of one is sent as it is.
+ * Conditional (IF ...) writes cannot share a batch with other partitions,
+ * so they are not registered and always go alone.  The session sits above the rate
+ * limiter, which charges a batch one permit per statement.  Each write's
+ * latency, from when it was handed to the session until its batch
+ * finished, goes to the Recorder registered for its statement.
+ * Statements must be registered before the run starts.
+ */
+public class BatchingSession extends EnhancedSession {
+    // String literals, which are blanked out before looking for an IF clause
+    private static final Pattern LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern CONDITION = Pattern.compile("\\bIF\\b", Pattern.CASE_INSENSITIVE);
+
+    private int batchSize;
+    private long lingerMicros;
+    private boolean byReplica;
+    private ProtocolVersion protocolVersion;
+    private CodecRegistry codecRegistry;
+    private Map<PreparedStatement,Recorder> recorders;
+    private Map<PreparedStatement,BatchStatement.Type> batchTypes;
+    private ConcurrentHashMap<Object,Group> groups;
+    private ScheduledExecutorService timer;
+    private LongAdder numWrites;
+    private LongAdder numBatches;
+    private LongAdder numAlone;
+    private LongAdder numFull;
+
+    public BatchingSession(Session inSession, int batchSize, long lingerMicros, boolean byReplica) {
+        super(inSession);
+        this.batchSize = batchSize;
+        this.lingerMicros = lingerMicros;
+        this.byReplica = byReplica;
+        protocolVersion = getCluster().getConfiguration().getProtocolOptions().getProtocolVersion();
+        codecRegistry = getCluster().getConfiguration().getCodecRegistry();
+        recorders = new IdentityHashMap<>();
+        batchTypes = new IdentityHashMap<>();
+        groups = new ConcurrentHashMap<>();
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "batch-linger");
+                t.setDaemon(true);
+                return t;
+            });
+        numWrites = new LongAdder();
+        numBatches = new LongAdder();
+        numAlone = new LongAdder();
+        numFull = new LongAdder();
+    }
+
+    /**
+     * Batches the statement from now on, unless it is a conditional write,
+     * or its table is not known so that it may be a counter update.
+     * Returns whether the statement will be batched.
+     */
+    public boolean register(PreparedStatement ps, Recorder recorder) {
+        if (CONDITION.matcher(LITERAL.matcher(ps.getQueryString()).replaceAll("''")).find())
+            return false;
+        Boolean counter = updatesCounters(ps);
+        if (null == counter)
+            return false;
+        recorders.put(ps, recorder);
+        batchTypes.put(ps, counter ? BatchStatement.Type.COUNTER : BatchStatement.Type.UNLOGGED);
+        return true;
+    }
+
+    // Whether the statement's table holds counters, or null if we cannot tell
+    private Boolean updatesCounters(PreparedStatement ps) {
+        ColumnDefinitions variables = ps.getVariables();
+        if (0 == variables.size())
+            return null;
+        KeyspaceMetadata keyspace = getCluster().getMetadata().getKeyspace(Metadata.quote(variables.getKeyspace(0)));
+        TableMetadata table = (null == keyspace) ? null : keyspace.getTable(Metadata.quote(variables.getTable(0)));
+        if (null == table)
+            return null;
+        for (ColumnMetadata column : table.getColumns()) {
+            if (DataType.Name.COUNTER == column.getType().getName())
+                return true;
+        }
+        return false;
+    }
+
+    /** Forgets the counts so far, e.g. at the end of a warmup. */
+    public void reset() {
+        numWrites.reset();
+        numBatches.reset();
+        numAlone.reset();
+        numFull.reset();
+    }
+
+    public String summary() {
+        long writes = numWrites.sum();
+        long batches = numBatches.sum();
+        long batched = writes - numAlone.sum();
+        return String.format("Batching (size %d, linger %.3f ms, by %s): %d writes, %d in %d batches (%.2f per batch, %d full), %d sent alone",
+                             batchSize, lingerMicros / 1000.0, byReplica ? "replica" : "partition", writes, batched,
+                             batches, (batches > 0) ? (batched + 0.0) / batches : 0, numFull.sum(), numAlone.sum());
+    }
+
+    public ResultSet execute(Statement statement) {
+        if (!batches(statement))
+            return super.execute(statement);
+        return executeAsync(statement).getUninterruptibly();
+    }
+
+    public ResultSetFuture executeAsync(Statement statement) {
+        if (!batches(statement))
+            return super.executeAsync(statement);
+        BoundStatement bs = (BoundStatement)statement;
+        numWrites.increment();
+        BatchStatement.Type type = batchTypes.get(bs.preparedStatement());
+        Object routing = groupKey(bs);
+        Write write = new Write(bs);
+        if (null == routing) {
+            // Nothing to group by, so there is no point waiting
+            send(new Group(type, write));
+            return write.future;
+        }
+        // Counter updates only go in COUNTER batches, so they are grouped apart
+        Object groupKey = (BatchStatement.Type.COUNTER == type) ? Arrays.asList(type, routing) : routing;
+        while (true) {
+            Group group = groups.computeIfAbsent(groupKey, k -> new Group(type, null));
+            Group full = null;
+            synchronized (group) {
+                if (group.closed)
+                    continue;
+                group.writes.add(write);
+                if (1 == group.writes.size())
+                    timer.schedule(() -> flush(groupKey, group), lingerMicros, TimeUnit.MICROSECONDS);
+                if (group.writes.size() >= batchSize) {
+                    group.closed = true;
+                    groups.remove(groupKey, group);
+                    numFull.increment();
+                    full = group;
+                }
+            }
+            if (null != full)
+                send(full);
+            return write.future;
+        }
+    }
+
+    private boolean batches(Statement statement) {
+        return (statement instanceof BoundStatement)
+            && recorders.containsKey(((BoundStatement)statement).preparedStatement());
+    }
+
+    // The partition key, or the replicas that own it, or null if it is not known
+    private Object groupKey(BoundStatement bs) {
+        ByteBuffer routingKey = bs.getRoutingKey(protocolVersion, codecRegistry);
+        if ((null == routingKey) || !byReplica)
+            return routingKey;
+        String keyspace = (null != bs.getKeyspace()) ? bs.getKeyspace() : getLoggedKeyspace();
+        return (null == keyspace) ? null : getCluster().getMetadata().getReplicas(keyspace, routingKey);
+    }
+
+    // Sends the group when it has lingered long enough, unless it filled up first
+    private void flush(Object groupKey, Group group) {
+        synchronized (group) {
+            if (group.closed)
+                return;
+            group.closed = true;
+            groups.remove(groupKey, group);
+        }
+        send(group);
+    }
+
+    private void send(Group group) {
+        Statement statement;
+        if (1 == group.writes.size()) {
+            numAlone.increment();
+            statement = group.writes.get(0).statement;
+        }
+        else {
+            numBatches.increment();
+            BatchStatement batch = new BatchStatement(group.type);
+            for (Write write : group.writes)
+                batch.add(write.statement);
+            statement = batch;
+        }
+        ResultSetFuture future;
+        try {
+            future = super.executeAsync(statement);
+        }
+        catch (RuntimeException e) {
+            for (Write write : group.writes)
+                write.future.setException(e);
+            return;
+        }
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet rs) {
+                    long end = System.nanoTime();
+                    for (Write write : group.writes) {
+                        recorders.get(write.statement.preparedStatement()).recordValue((end - write.startNanos) / 1000);
+                        write.future.set(rs);
+                    }
+                }
+                @Override
+                public void onFailure(Throwable t) {
+                    for (Write write : group.writes)
+                        write.future.setException(t);
+                }
+            }, MoreExecutors.directExecutor());
+    }
+
+    private static final class Write {
+        private BoundStatement statement;
+        private long startNanos = System.nanoTime();
+        private SettableResultSetFuture future = new SettableResultSetFuture();
+
+        Write(BoundStatement statement) {
+            this.statement = statement;
+        }
+    }
+
+    /** The writes waiting to go out together.  Once closed, no more can join. */
+    private static final class Group {
+        private BatchStatement.Type type;
+        private List<Write> writes = new ArrayList<>();
+        private boolean closed = false;
+
+        Group(BatchStatement.Type type, Write first) {
+            this.type = type;
+            if (null != first)
+                writes.add(first);
+        }
+    }
+}
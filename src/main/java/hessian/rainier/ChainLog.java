@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Output for a run, at one of four levels:
+ *   silent   nothing but errors
+ *   summary  the end-of-run report (and phase reports)
+ *   sampled  the summary, plus a trace of every statement of one chain in sampleEvery
+ *   trace    the summary, plus a trace of every statement of every chain
+ *
+ * Workers never format or write trace lines themselves.  They put the
+ * format and its arguments on a bounded queue, and a background writer
+ * formats them and writes them out in batches.  If the queue is full the
+ * line is dropped rather than making the worker wait, and the number of
+ * dropped lines is reported when the log is closed.
+ */
+public class ChainLog implements Runnable {
+    public enum Level { SILENT, SUMMARY, SAMPLED, TRACE }
+
+    private static final Entry endOfLog = new Entry(null, null);
+    private Level level;
+    private int sampleEvery;
+    private PrintStream stream;
+    private BlockingQueue<Entry> queue;
+    private LongAdder numDropped = new LongAdder();
+    private Thread writer = null;
+
+    private static class Entry {
+        private String format;
+        private Object[] args;
+
+        Entry(String format, Object[] args) {
+            this.format = format;
+            this.args = args;
+        }
+    }
+
+    public ChainLog(Level inLevel, int inSampleEvery, int inCapacity, PrintStream inStream) {
+        level = inLevel;
+        sampleEvery = inSampleEvery;
+        stream = inStream;
+        queue = new ArrayBlockingQueue<>(inCapacity);
+        if ((Level.SAMPLED == level) || (Level.TRACE == level)) {
+            writer = new Thread(this, "chain-log");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /** Whether the end-of-run report should be printed. */
+    public boolean summarizes() {
+        return Level.SILENT != level;
+    }
+
+    /** Whether the statements of the given iteration should be traced. */
+    public boolean traces(long iteration) {
+        if (Level.TRACE == level)
+            return true;
+        return (Level.SAMPLED == level) && (0 == iteration % sampleEvery);
+    }
+
+    /** Queues a line to be formatted with String.format by the writer. */
+    public void trace(String format, Object... args) {
+        if (!queue.offer(new Entry(format, args)))
+            numDropped.increment();
+    }
+
+    /** An argument for trace() that formats a chain's variables when the line is written. */
+    public static Object variables(final ChainPlan plan, final Object[] env) {
+        return new Object() {
+            @Override
+            public String toString() {
+                return plan.format(env);
+            }
+        };
+    }
+
+    public void run() {
+        List<Entry> batch = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                boolean done = false;
+                for (Entry entry : batch) {
+                    if (endOfLog == entry) {
+                        done = true;
+                        break;
+                    }
+                    sb.append(String.format(entry.format, entry.args)).append('\n');
+                }
+                stream.print(sb);
+                if (done || queue.isEmpty())
+                    stream.flush();
+                batch.clear();
+                sb.setLength(0);
+                if (done)
+                    return;
+            }
+        }
+        catch (InterruptedException e) {
+            // exit
+        }
+    }
+
+    /**
+     * Writes out whatever is queued and stops the writer.  Must be called
+     * after the workers are done and before the summary is printed.
+     */
+    public void close() throws InterruptedException {
+        if (null != writer) {
+            queue.put(endOfLog);
+            writer.join();
+        }
+        if (0 < numDropped.sum())
+            System.err.println(numDropped.sum() + " trace lines were dropped because the output could not keep up");
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedId;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.QueryOptions;
+import com.datastax.driver.core.TypeCodec;
+import com.datastax.driver.core.utils.Bytes;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The chain of prepared statements, compiled once before the run.  Every
+ * argument name and bind marker gets a fixed slot, every bind marker
+ * records the slot it reads, and every result column records the slot it
+ * feeds (or -1 if no later statement uses it).  At run time a chain's
+ * variables are just an Object[] indexed by slot.
+ */
+public class ChainPlan {
+    private String[] slotNames;
+    private Map<String,Integer> slotIndex;
+    // type of the last column that writes each slot, or null if only an argument does
+    private DataType[] slotColumnTypes;
+    private CodecRegistry codecRegistry;
+    private ProtocolVersion protocolVersion;
+    private Step[] steps;
+
+    public static class Step {
+        private int index;
+        private PreparedStatement preparedStatement;
+        private int[] bindSlots;
+        private DataType[] bindTypes;
+        private TypeCodec<Object>[] bindCodecs;
+        // type of the column that last wrote each bind slot, or null if it comes from an argument
+        private DataType[] bindSourceTypes;
+        private int[] columnSlots;
+        private DataType[] columnTypes;
+        private TypeCodec<Object>[] columnCodecs;
+        private int fetchSize = 0;
+        private int effectiveFetchSize = QueryOptions.DEFAULT_FETCH_SIZE;
+        private int fanOut = 1;
+
+        public int getIndex() {
+            return index;
+        }
+
+        public PreparedStatement getPreparedStatement() {
+            return preparedStatement;
+        }
+
+        public int numBindings() {
+            return bindSlots.length;
+        }
+
+        public int getBindSlot(int i) {
+            return bindSlots[i];
+        }
+
+        public DataType getBindType(int i) {
+            return bindTypes[i];
+        }
+
+        public TypeCodec<Object> getBindCodec(int i) {
+            return bindCodecs[i];
+        }
+
+        public DataType getBindSourceType(int i) {
+            return bindSourceTypes[i];
+        }
+
+        public int numColumns() {
+            return columnSlots.length;
+        }
+
+        public int getColumnSlot(int i) {
+            return columnSlots[i];
+        }
+
+        public DataType getColumnType(int i) {
+            return columnTypes[i];
+        }
+
+        public TypeCodec<Object> getColumnCodec(int i) {
+            return columnCodecs[i];
+        }
+
+        /** The fetch size set on this statement, or 0 for the cluster default. */
+        public int getFetchSize() {
+            return fetchSize;
+        }
+
+        /** The number of rows per page this statement will actually get. */
+        public int getEffectiveFetchSize() {
+            return effectiveFetchSize;
+        }
+
+        /** Whether this statement is a SELECT, whose rows may be cached or shared. */
+        public boolean isRead() {
+            return preparedStatement.getQueryString().trim().toLowerCase().startsWith("select");
+        }
+
+        /** How many of the subtrees under this statement's rows may run at once. */
+        public int getFanOut() {
+            return fanOut;
+        }
+
+        public BoundStatement newBoundStatement() {
+            BoundStatement bs = preparedStatement.bind();
+            if (0 < fetchSize)
+                bs.setFetchSize(fetchSize);
+            return bs;
+        }
+    }
+
+    private ChainPlan() {
+    }
+
+    /**
+     * Compiles the chain, or throws IllegalArgumentException listing every
+     * bind marker that neither an argument nor an earlier statement provides.
+     * protocolVersion is the one the cluster negotiated, which raw values
+     * are serialized with.
+     */
+    public static ChainPlan compile(List<PreparedStatement> preparedStatements, Collection<String> argNames,
+                                    CodecRegistry codecRegistry, ProtocolVersion protocolVersion) {
+        ChainPlan plan = new ChainPlan();
+        int numSteps = preparedStatements.size();
+        ColumnDefinitions[] resultColumns = new ColumnDefinitions[numSteps];
+        Map<String,Integer> slots = new LinkedHashMap<>();
+        for (String name : argNames)
+            slots.put(name, slots.size());
+        for (int s = 0; s < numSteps; s++) {
+            for (ColumnDefinitions.Definition cdef : preparedStatements.get(s).getVariables()) {
+                if (!slots.containsKey(cdef.getName()))
+                    slots.put(cdef.getName(), slots.size());
+            }
+            resultColumns[s] = resultColumns(preparedStatements.get(s));
+        }
+
+        // Walk the chain in order, tracking which slots have been written and by what type
+        List<String> errors = new ArrayList<>();
+        boolean[] written = new boolean[slots.size()];
+        DataType[] slotTypes = new DataType[slots.size()];
+        for (String name : argNames)
+            written[slots.get(name)] = true;
+        plan.steps = new Step[numSteps];
+        for (int s = 0; s < numSteps; s++) {
+            Step step = new Step();
+            step.index = s;
+            step.preparedStatement = preparedStatements.get(s);
+            ColumnDefinitions variables = step.preparedStatement.getVariables();
+            step.bindSlots = new int[variables.size()];
+            step.bindTypes = new DataType[variables.size()];
+            step.bindCodecs = newCodecs(variables.size());
+            step.bindSourceTypes = new DataType[variables.size()];
+            for (int i = 0; i < variables.size(); i++) {
+                int slot = slots.get(variables.getName(i));
+                if (!written[slot])
+                    errors.add("No value for :" + variables.getName(i) + " in statement " + (s + 1)
+                               + ": " + step.preparedStatement.getQueryString());
+                step.bindSlots[i] = slot;
+                step.bindTypes[i] = variables.getType(i);
+                step.bindCodecs[i] = codecRegistry.codecFor(variables.getType(i));
+                step.bindSourceTypes[i] = slotTypes[slot];
+            }
+
+            ColumnDefinitions columns = resultColumns[s];
+            int numColumns = (null == columns) ? 0 : columns.size();
+            step.columnSlots = new int[numColumns];
+            step.columnTypes = new DataType[numColumns];
+            step.columnCodecs = newCodecs(numColumns);
+            for (int i = 0; i < numColumns; i++) {
+                Integer slot = slots.get(columns.getName(i));
+                step.columnSlots[i] = (null == slot) ? -1 : slot;
+                step.columnTypes[i] = columns.getType(i);
+                step.columnCodecs[i] = codecRegistry.codecFor(columns.getType(i));
+                if (null != slot) {
+                    written[slot] = true;
+                    slotTypes[slot] = columns.getType(i);
+                }
+            }
+            plan.steps[s] = step;
+        }
+        if (!errors.isEmpty())
+            throw new IllegalArgumentException(String.join("\n", errors));
+
+        plan.slotIndex = new HashMap<>(slots);
+        plan.slotNames = slots.keySet().toArray(new String[slots.size()]);
+        plan.slotColumnTypes = slotTypes;
+        plan.codecRegistry = codecRegistry;
+        plan.protocolVersion = protocolVersion;
+        return plan;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static TypeCodec<Object>[] newCodecs(int n) {
+        return new TypeCodec[n];
+    }
+
+    // The driver does not expose the result metadata of a prepared statement, so we read it reflectively
+    private static ColumnDefinitions resultColumns(PreparedStatement ps) {
+        try {
+            PreparedId preparedId = ps.getPreparedId();
+            Field metadataField = PreparedId.class.getDeclaredField("resultSetMetadata");
+            metadataField.setAccessible(true);
+            Object metadata = metadataField.get(preparedId);
+            if ((null == metadata) || (metadata instanceof ColumnDefinitions))
+                return (ColumnDefinitions)metadata;
+            Field variablesField = metadata.getClass().getDeclaredField("variables");
+            variablesField.setAccessible(true);
+            return (ColumnDefinitions)variablesField.get(metadata);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not read result metadata for: " + ps.getQueryString(), e);
+        }
+    }
+
+    public int numSteps() {
+        return steps.length;
+    }
+
+    public Step getStep(int i) {
+        return steps[i];
+    }
+
+    /**
+     * Sets the page size of each statement.  Statements past the end of
+     * fetchSizes use the last entry, and 0 means the cluster default.
+     */
+    public void setFetchSizes(int[] fetchSizes, int defaultFetchSize) {
+        for (int s = 0; s < steps.length; s++) {
+            int fetchSize = (null == fetchSizes || 0 == fetchSizes.length) ? 0
+                : fetchSizes[Math.min(s, fetchSizes.length - 1)];
+            steps[s].fetchSize = fetchSize;
+            steps[s].effectiveFetchSize = (0 < fetchSize) ? fetchSize : defaultFetchSize;
+        }
+    }
+
+    /**
+     * Sets how many child subtrees of each statement's rows may run at
+     * once.  Statements past the end of fanOuts use the last entry.
+     */
+    public void setFanOuts(int[] fanOuts) {
+        for (int s = 0; s < steps.length; s++)
+            steps[s].fanOut = (null == fanOuts || 0 == fanOuts.length) ? 1 : fanOuts[Math.min(s, fanOuts.length - 1)];
+    }
+
+    public int numSlots() {
+        return slotNames.length;
+    }
+
+    public int getSlot(String name) {
+        Integer slot = slotIndex.get(name);
+        return (null == slot) ? -1 : slot;
+    }
+
+    public String getSlotName(int slot) {
+        return slotNames[slot];
+    }
+
+    public Object[] newEnv() {
+        return new Object[slotNames.length];
+    }
+
+    public String format(Object[] env) {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < env.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(slotNames[i]).append('=');
+            if (env[i] instanceof ByteBuffer)
+                sb.append(formatBytes(i, (ByteBuffer)env[i]));
+            else
+                sb.append(env[i]);
+        }
+        return sb.append('}').toString();
+    }
+
+    // Raw bind mode keeps column values serialized: show them as CQL literals, or as hex if they do not decode
+    private String formatBytes(int slot, ByteBuffer value) {
+        if (null != slotColumnTypes[slot]) {
+            try {
+                TypeCodec<Object> codec = codecRegistry.codecFor(slotColumnTypes[slot]);
+                return codec.format(codec.deserialize(value.duplicate(), protocolVersion));
+            }
+            catch (RuntimeException e) {
+                // fall through to hex
+            }
+        }
+        return Bytes.toHexString(value);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+
+/**
+ * Per-statement counters and latency histograms for a chain, updated from
+ * any worker thread.  Latencies are recorded in microseconds into
+ * HdrHistogram Recorders, which writers update without taking a lock.
+ * Whenever the recorders are read, for an interval report or the final
+ * one, what they held is added to a running total.  The totals of
+ * another process can be merged in, which is how a coordinator combines
+ * the percentiles of its agents.
+ */
+public class ChainStats {
+    private static final int significantDigits = 3;
+    private LongAdder[] executions;
+    private LongAdder[] pages;
+    private LongAdder[] rows;
+    private Recorder[] latencies;
+    private Recorder chainLatency;
+    private Recorder correctedChainLatency;
+    private Histogram[] latencyTotals;
+    private Histogram chainLatencyTotal;
+    private Histogram correctedChainLatencyTotal;
+    private Recorder[] subtreeLatencies;
+    private Recorder[] fanOutWidths;
+    private Histogram[] subtreeLatencyTotals;
+    private Histogram[] fanOutWidthTotals;
+
+    public ChainStats(int numSteps) {
+        executions = newAdders(numSteps);
+        pages = newAdders(numSteps);
+        rows = newAdders(numSteps);
+        latencies = new Recorder[numSteps];
+        latencyTotals = new Histogram[numSteps];
+        for (int i = 0; i < numSteps; i++) {
+            latencies[i] = new Recorder(significantDigits);
+            latencyTotals[i] = new Histogram(significantDigits);
+        }
+        subtreeLatencies = new Recorder[numSteps];
+        fanOutWidths = new Recorder[numSteps];
+        subtreeLatencyTotals = new Histogram[numSteps];
+        fanOutWidthTotals = new Histogram[numSteps];
+        for (int i = 0; i < numSteps; i++) {
+            subtreeLatencies[i] = new Recorder(significantDigits);
+            fanOutWidths[i] = new Recorder(significantDigits);
+            subtreeLatencyTotals[i] = new Histogram(significantDigits);
+            fanOutWidthTotals[i] = new Histogram(significantDigits);
+        }
+        chainLatency = new Recorder(significantDigits);
+        correctedChainLatency = new Recorder(significantDigits);
+        chainLatencyTotal = new Histogram(significantDigits);
+        correctedChainLatencyTotal = new Histogram(significantDigits);
+    }
+
+    private static LongAdder[] newAdders(int n) {
+        LongAdder[] adders = new LongAdder[n];
+        for (int i = 0; i < n; i++)
+            adders[i] = new LongAdder();
+        return adders;
+    }
+
+    public void recordExecution(int step) {
+        executions[step].increment();
+    }
+
+    public void recordPage(int step, int numRows) {
+        recordPages(step, 1, numRows);
+    }
+
+    public void recordPages(int step, int numPages, int numRows) {
+        pages[step].add(numPages);
+        rows[step].add(numRows);
+    }
+
+    public Recorder getLatencyRecorder(int step) {
+        return latencies[step];
+    }
+
+    public void recordChainLatency(long nanos) {
+        chainLatency.recordValue(nanos / 1000);
+    }
+
+    /** Records chain latency measured from the intended, rather than the actual, start. */
+    public void recordCorrectedChainLatency(long nanos) {
+        correctedChainLatency.recordValue(nanos / 1000);
+    }
+
+    /**
+     * Records one execution of a step together with everything run for its
+     * rows: the latency until the last descendant finished, and the number
+     * of rows (children) it fanned out to.
+     */
+    public void recordSubtree(int step, long nanos, long width) {
+        subtreeLatencies[step].recordValue(nanos / 1000);
+        fanOutWidths[step].recordValue(width);
+    }
+
+    /** Forgets everything recorded so far, e.g. at the end of a warmup. */
+    public synchronized void reset() {
+        for (int s = 0; s < latencies.length; s++) {
+            executions[s].reset();
+            pages[s].reset();
+            rows[s].reset();
+            latencies[s].reset();
+            latencyTotals[s].reset();
+            subtreeLatencies[s].reset();
+            fanOutWidths[s].reset();
+            subtreeLatencyTotals[s].reset();
+            fanOutWidthTotals[s].reset();
+        }
+        chainLatency.reset();
+        chainLatencyTotal.reset();
+        correctedChainLatency.reset();
+        correctedChainLatencyTotal.reset();
+    }
+
+    private static Histogram drain(Recorder recorder, Histogram total) {
+        Histogram interval = recorder.getIntervalHistogram();
+        total.add(interval);
+        return interval;
+    }
+
+    private void drainAll() {
+        for (int s = 0; s < latencies.length; s++) {
+            drain(latencies[s], latencyTotals[s]);
+            drain(subtreeLatencies[s], subtreeLatencyTotals[s]);
+            drain(fanOutWidths[s], fanOutWidthTotals[s]);
+        }
+        drain(chainLatency, chainLatencyTotal);
+        drain(correctedChainLatency, correctedChainLatencyTotal);
+    }
+
+    /** Writes the counters and histograms recorded so far, to be merged by another process. */
+    public synchronized void writeTo(DataOutputStream out) throws IOException {
+        drainAll();
+        out.writeInt(latencies.length);
+        for (int s = 0; s < latencies.length; s++) {
+            out.writeLong(executions[s].sum());
+            out.writeLong(pages[s].sum());
+            out.writeLong(rows[s].sum());
+            writeHistogram(out, latencyTotals[s]);
+            writeHistogram(out, subtreeLatencyTotals[s]);
+            writeHistogram(out, fanOutWidthTotals[s]);
+        }
+        writeHistogram(out, chainLatencyTotal);
+        writeHistogram(out, correctedChainLatencyTotal);
+    }
+
+    /** Adds what another process wrote with writeTo() to the totals here. */
+    public synchronized void merge(DataInputStream in) throws IOException {
+        int numSteps = in.readInt();
+        if (numSteps != latencies.length)
+            throw new IOException("Statistics for " + numSteps + " steps cannot be merged into " + latencies.length);
+        for (int s = 0; s < numSteps; s++) {
+            executions[s].add(in.readLong());
+            pages[s].add(in.readLong());
+            rows[s].add(in.readLong());
+            latencyTotals[s].add(readHistogram(in));
+            subtreeLatencyTotals[s].add(readHistogram(in));
+            fanOutWidthTotals[s].add(readHistogram(in));
+        }
+        chainLatencyTotal.add(readHistogram(in));
+        correctedChainLatencyTotal.add(readHistogram(in));
+    }
+
+    private static void writeHistogram(DataOutputStream out, Histogram histogram) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        int length = histogram.encodeIntoCompressedByteBuffer(buffer);
+        out.writeInt(length);
+        out.write(buffer.array(), 0, length);
+    }
+
+    private static Histogram readHistogram(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        try {
+            return Histogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(bytes), 0);
+        }
+        catch (DataFormatException e) {
+            throw new IOException("Could not decode histogram", e);
+        }
+    }
+
+    /**
+     * Prints the latencies recorded since the last report, each line
+     * prefixed by label, and adds them to the totals.
+     */
+    public synchronized void reportInterval(PrintStream stream, String label) {
+        stream.println("Interval,Latency(ms),Count,Mean,50th,99th,99.9th,Max");
+        for (int s = 0; s < latencies.length; s++)
+            printLatency(stream, label + ",Step " + (s + 1), drain(latencies[s], latencyTotals[s]));
+        printLatency(stream, label + ",Chain", drain(chainLatency, chainLatencyTotal));
+        Histogram corrected = drain(correctedChainLatency, correctedChainLatencyTotal);
+        if (0 < corrected.getTotalCount())
+            printLatency(stream, label + ",Chain(corrected)", corrected);
+    }
+
+    public synchronized void report(PrintStream stream, ChainPlan plan) {
+        stream.println("Step,Executions,Pages,PagesPerExecution,Rows,RowsPerExecution,Statement");
+        for (int s = 0; s < plan.numSteps(); s++) {
+            long numExecutions = executions[s].sum();
+            long numPages = pages[s].sum();
+            long numRows = rows[s].sum();
+            stream.println(String.format("%d,%d,%d,%.3f,%d,%.3f,%s", s + 1, numExecutions, numPages,
+                                         (numExecutions > 0) ? (numPages + 0.0) / numExecutions : 0,
+                                         numRows,
+                                         (numExecutions > 0) ? (numRows + 0.0) / numExecutions : 0,
+                                         plan.getStep(s).getPreparedStatement().getQueryString()));
+        }
+
+        drainAll();
+        stream.println("Latency(ms),Count,Mean,50th,99th,99.9th,Max");
+        for (int s = 0; s < plan.numSteps(); s++)
+            printLatency(stream, "Step " + (s + 1), latencyTotals[s]);
+        printLatency(stream, "Chain", chainLatencyTotal);
+        if (0 < correctedChainLatencyTotal.getTotalCount())
+            printLatency(stream, "Chain(corrected)", correctedChainLatencyTotal);
+
+        Histogram[] subtrees = subtreeLatencyTotals;
+        Histogram[] widths = fanOutWidthTotals;
+        boolean anySubtrees = false;
+        for (int s = 0; s < latencies.length; s++)
+            anySubtrees |= (0 < subtrees[s].getTotalCount());
+        if (!anySubtrees)
+            return;
+        stream.println("Subtree,FanOut,Count,MeanWidth,50th,99th,Max,MeanLatency(ms),50th,99th,99.9th,Max");
+        for (int s = 0; s < latencies.length; s++) {
+            if (0 == subtrees[s].getTotalCount())
+                continue;
+            stream.println(String.format("Step %d,%d,%d,%.3f,%d,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f", s + 1,
+                                         plan.getStep(s).getFanOut(), widths[s].getTotalCount(),
+                                         widths[s].getMean(), widths[s].getValueAtPercentile(50.0),
+                                         widths[s].getValueAtPercentile(99.0), widths[s].getMaxValue(),
+                                         subtrees[s].getMean() / 1000.0,
+                                         subtrees[s].getValueAtPercentile(50.0) / 1000.0,
+                                         subtrees[s].getValueAtPercentile(99.0) / 1000.0,
+                                         subtrees[s].getValueAtPercentile(99.9) / 1000.0,
+                                         subtrees[s].getMaxValue() / 1000.0));
+        }
+    }
+
+    protected static void printLatency(PrintStream stream, String label, Histogram histogram) {
+        stream.println(String.format("%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f", label,
+                                     histogram.getTotalCount(),
+                                     histogram.getMean() / 1000.0,
+                                     histogram.getValueAtPercentile(50.0) / 1000.0,
+                                     histogram.getValueAtPercentile(99.0) / 1000.0,
+                                     histogram.getValueAtPercentile(99.9) / 1000.0,
+                                     histogram.getMaxValue() / 1000.0));
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Single-flight reads: a registered statement bound to the same values as
+ * one already in flight does not go to the cluster, but waits for that
+ * request and gets the same rows.  The first caller's request reads every
+ * page before anyone sees a row, and each caller then gets a ResultSet of
+ * its own over them.  The session sits above the rate limiter, so the
+ * reads that join another do not take a permit.  Statements must be
+ * registered before the run starts.
+ */
+public class CoalescingSession extends EnhancedSession {
+    private Set<PreparedStatement> coalesced;
+    private ConcurrentHashMap<Key,SettableFuture<SharedResult>> inFlight;
+    private LongAdder numReads;
+    private LongAdder numSent;
+
+    public CoalescingSession(Session inSession) {
+        super(inSession);
+        coalesced = Collections.newSetFromMap(new IdentityHashMap<>());
+        inFlight = new ConcurrentHashMap<>();
+        numReads = new LongAdder();
+        numSent = new LongAdder();
+    }
+
+    public void register(PreparedStatement ps) {
+        coalesced.add(ps);
+    }
+
+    /** Forgets the counts so far, e.g. at the end of a warmup. */
+    public void reset() {
+        numReads.reset();
+        numSent.reset();
+    }
+
+    public String summary() {
+        long reads = numReads.sum();
+        long sent = numSent.sum();
+        return String.format("Coalescing: %d reads, %d sent to the cluster, %d joined one in flight (%.3f reads per request)",
+                             reads, sent, reads - sent, (sent > 0) ? (reads + 0.0) / sent : 0);
+    }
+
+    public ResultSet execute(Statement statement) {
+        if (!coalesces(statement))
+            return super.execute(statement);
+        return executeAsync(statement).getUninterruptibly();
+    }
+
+    public ResultSetFuture executeAsync(Statement statement) {
+        if (!coalesces(statement))
+            return super.executeAsync(statement);
+        numReads.increment();
+        Key key = new Key((BoundStatement)statement);
+        SettableFuture<SharedResult> shared = SettableFuture.create();
+        SettableFuture<SharedResult> running = inFlight.putIfAbsent(key, shared);
+        if (null == running) {
+            numSent.increment();
+            running = shared;
+            try {
+                Futures.addCallback(super.executeAsync(statement), new FutureCallback<ResultSet>() {
+                        @Override
+                        public void onSuccess(ResultSet rs) {
+                            readAll(key, shared, rs, new ArrayList<>());
+                        }
+                        @Override
+                        public void onFailure(Throwable t) {
+                            finish(key, shared, null, t);
+                        }
+                    }, MoreExecutors.directExecutor());
+            }
+            catch (RuntimeException e) {
+                finish(key, shared, null, e);
+            }
+        }
+        // Each caller gets its own view of the rows
+        SettableResultSetFuture future = new SettableResultSetFuture();
+        Futures.addCallback(running, new FutureCallback<SharedResult>() {
+                @Override
+                public void onSuccess(SharedResult result) {
+                    future.set(new SharedResultSet(result));
+                }
+                @Override
+                public void onFailure(Throwable t) {
+                    future.setException(t);
+                }
+            }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    private boolean coalesces(Statement statement) {
+        return (statement instanceof BoundStatement)
+            && coalesced.contains(((BoundStatement)statement).preparedStatement());
+    }
+
+    // Reads the rows of this page, then the next page, until there are no more
+    private void readAll(Key key, SettableFuture<SharedResult> shared, ResultSet rs, List<Row> rows) {
+        for (int remaining = rs.getAvailableWithoutFetching(); remaining > 0; remaining--)
+            rows.add(rs.one());
+        if (rs.isFullyFetched()) {
+            finish(key, shared, new SharedResult(rs.getColumnDefinitions(), rows, rs.getAllExecutionInfo()), null);
+            return;
+        }
+        Futures.addCallback(rs.fetchMoreResults(), new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet next) {
+                    readAll(key, shared, next, rows);
+                }
+                @Override
+                public void onFailure(Throwable t) {
+                    finish(key, shared, null, t);
+                }
+            }, MoreExecutors.directExecutor());
+    }
+
+    // Later reads of the same values start a new request
+    private void finish(Key key, SettableFuture<SharedResult> shared, SharedResult result, Throwable t) {
+        inFlight.remove(key, shared);
+        if (null == t)
+            shared.set(result);
+        else
+            shared.setException(t);
+    }
+
+    /** A prepared statement and the serialized values bound to it. */
+    private static final class Key {
+        private PreparedStatement preparedStatement;
+        private ByteBuffer[] values;
+        private int hash;
+
+        Key(BoundStatement bs) {
+            preparedStatement = bs.preparedStatement();
+            values = new ByteBuffer[preparedStatement.getVariables().size()];
+            for (int i = 0; i < values.length; i++)
+                values[i] = bs.getBytesUnsafe(i);
+            hash = 31 * System.identityHashCode(preparedStatement) + Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key)o;
+            return (preparedStatement == other.preparedStatement) && Arrays.equals(values, other.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /** Every row of a read, shared by everyone who asked for it. */
+    private static final class SharedResult {
+        private ColumnDefinitions columnDefinitions;
+        private List<Row> rows;
+        private List<ExecutionInfo> executionInfos;
+
+        SharedResult(ColumnDefinitions columnDefinitions, List<Row> rows, List<ExecutionInfo> executionInfos) {
+            this.columnDefinitions = columnDefinitions;
+            this.rows = rows;
+            this.executionInfos = executionInfos;
+        }
+    }
+
+    /** One caller's fully fetched view of a SharedResult. */
+    private static final class SharedResultSet implements ResultSet {
+        private SharedResult result;
+        private int next = 0;
+
+        SharedResultSet(SharedResult result) {
+            this.result = result;
+        }
+
+        public Row one() {
+            return (next < result.rows.size()) ? result.rows.get(next++) : null;
+        }
+
+        public ColumnDefinitions getColumnDefinitions() {
+            return result.columnDefinitions;
+        }
+
+        public boolean wasApplied() {
+            return true;
+        }
+
+        public boolean isExhausted() {
+            return next >= result.rows.size();
+        }
+
+        public boolean isFullyFetched() {
+            return true;
+        }
+
+        public int getAvailableWithoutFetching() {
+            return result.rows.size() - next;
+        }
+
+        public ListenableFuture<ResultSet> fetchMoreResults() {
+            return Futures.<ResultSet>immediateFuture(this);
+        }
+
+        public List<Row> all() {
+            List<Row> rest = result.rows.subList(next, result.rows.size());
+            next = result.rows.size();
+            return rest;
+        }
+
+        public Iterator<Row> iterator() {
+            return new Iterator<Row>() {
+                public boolean hasNext() {
+                    return !isExhausted();
+                }
+
+                public Row next() {
+                    return one();
+                }
+            };
+        }
+
+        public ExecutionInfo getExecutionInfo() {
+            return result.executionInfos.get(result.executionInfos.size() - 1);
+        }
+
+        public List<ExecutionInfo> getAllExecutionInfo() {
+            return result.executionInfos;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The coordinator side of a distributed run.  The coordinator runs share 0
+ * itself and waits for numAgents agents, which run shares 1 to numAgents.
+ * Once every process has warmed up, all of them start together.  At the
+ * end the agents' histograms are merged into the coordinator's ChainStats,
+ * so the report has percentiles for the whole run rather than per process.
+ * stopAgents() ends the agents' runs early, e.g. on SIGINT.
+ */
+public class Coordinator {
+    private int port;
+    private Socket[] sockets;
+    private DataInputStream[] ins;
+    private DataOutputStream[] outs;
+    private long numIterations = 0;
+    private long numChains = 0;
+    private boolean started = false;
+    private boolean stopRequested = false;
+
+    public Coordinator(int port, int numAgents) {
+        this.port = port;
+        sockets = new Socket[numAgents];
+        ins = new DataInputStream[numAgents];
+        outs = new DataOutputStream[numAgents];
+    }
+
+    /** Waits for every agent to connect and sends it its share, and returns the coordinator's own share. */
+    public LoadShare accept(RainierParams params) throws IOException {
+        int numShares = sockets.length + 1;
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(port));
+            System.err.println("Waiting for " + sockets.length + " agents on port " + port);
+            for (int i = 0; i < sockets.length; i++) {
+                sockets[i] = serverSocket.accept();
+                sockets[i].setTcpNoDelay(true);
+                ins[i] = new DataInputStream(new BufferedInputStream(sockets[i].getInputStream()));
+                outs[i] = new DataOutputStream(new BufferedOutputStream(sockets[i].getOutputStream()));
+                LoadShare.of(params, i + 1, numShares).writeTo(outs[i]);
+                outs[i].flush();
+                System.err.println("Agent " + (i + 1) + " connected from " + sockets[i].getRemoteSocketAddress());
+            }
+        }
+        return LoadShare.of(params, 0, numShares);
+    }
+
+    /**
+     * Waits until every agent is ready, then has all of them, and this
+     * process, start delayMillis later.
+     */
+    public void start(long delayMillis) throws IOException, InterruptedException {
+        for (int i = 0; i < ins.length; i++) {
+            if (Agent.READY != ins[i].readInt())
+                throw new IOException("Unexpected message from agent " + (i + 1));
+        }
+        long startAt = System.currentTimeMillis() + delayMillis;
+        synchronized (this) {
+            for (DataOutputStream out : outs) {
+                out.writeLong(startAt);
+                out.flush();
+            }
+            started = true;
+            // A stop that came before the start is passed on now
+            if (stopRequested)
+                sendStop();
+        }
+        Agent.sleepUntil(startAt);
+    }
+
+    /** Tells every agent to stop starting iterations, drain, and send its results.  Safe from any thread. */
+    public synchronized void stopAgents() {
+        if (stopRequested)
+            return;
+        stopRequested = true;
+        if (started)
+            sendStop();
+    }
+
+    private void sendStop() {
+        for (int i = 0; i < outs.length; i++) {
+            try {
+                outs[i].writeInt(Agent.STOP);
+                outs[i].flush();
+            }
+            catch (IOException e) {
+                System.err.println("Could not stop agent " + (i + 1) + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads every agent's results and merges its statistics into
+     * chainStats.  An agent whose results are not in within waitMillis, or
+     * that went away, counts as failed.  Returns a line for each agent, for the
+     * report.
+     */
+    public List<String> collect(ChainStats chainStats, long waitMillis) {
+        List<String> lines = new ArrayList<>(sockets.length);
+        long deadline = System.currentTimeMillis() + waitMillis;
+        for (int i = 0; i < sockets.length; i++) {
+            try {
+                long remaining = deadline - System.currentTimeMillis();
+                sockets[i].setSoTimeout((int)Math.min(Integer.MAX_VALUE, Math.max(1, remaining)));
+                long agentIterations = ins[i].readLong();
+                long agentChains = ins[i].readLong();
+                long agentElapsed = ins[i].readLong();
+                chainStats.merge(ins[i]);
+                numIterations += agentIterations;
+                numChains += agentChains;
+                lines.add(String.format("Agent %d: %d iterations, %d chains in %d ms", i + 1, agentIterations,
+                                        agentChains, agentElapsed));
+            }
+            catch (SocketTimeoutException e) {
+                lines.add("Agent " + (i + 1) + ": failed, no results within " + waitMillis + " ms, not included below");
+            }
+            catch (IOException e) {
+                lines.add("Agent " + (i + 1) + ": failed, no results (" + e.getMessage() + "), not included below");
+            }
+            finally {
+                try {
+                    sockets[i].close();
+                }
+                catch (IOException e) {
+                    // nothing more to read
+                }
+            }
+        }
+        return lines;
+    }
+
+    /** The number of iterations run by the agents, once collected. */
+    public long getNumIterations() {
+        return numIterations;
+    }
+
+    public long getNumChains() {
+        return numChains;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+/**
+ * Additive-increase, multiplicative-decrease on the request error rate.
+ * Every howOften milliseconds the fraction of requests since the last
+ * check that failed (errors and timeouts alike) is compared with
+ * maxErrorRate.  Above it, the rate is cut by downFraction.  Otherwise
+ * the rate grows by a fixed increment.
+ */
+public class ErrorRateRateLimiter extends AbstractDynamicRateLimiter {
+    private LatencyRecordingSession latencySession;
+    private double increment;
+    private long lastRequests = 0;
+    private long lastErrors = 0;
+
+    public ErrorRateRateLimiter(double inRate, long inHowOften, double inMaxErrorRate,
+                                double inDownFraction, double inIncrement,
+                                LatencyRecordingSession inLatencySession) {
+        super(inRate, inHowOften, inMaxErrorRate, inMaxErrorRate, inDownFraction, 0, false);
+        increment = inIncrement;
+        latencySession = inLatencySession;
+    }
+
+    protected synchronized double getCurrStat() {
+        long requests = latencySession.getNumRequests();
+        long errors = latencySession.getNumErrors();
+        long deltaRequests = requests - lastRequests;
+        long deltaErrors = errors - lastErrors;
+        lastRequests = requests;
+        lastErrors = errors;
+        if (0 == deltaRequests)
+            return Double.NaN;  // no requests, no change
+        return (deltaErrors + 0.0) / deltaRequests;
+    }
+
+    protected synchronized boolean statTooLow(double currStat) {
+        return currStat <= minStat;
+    }
+
+    protected synchronized void adjustRateUp() {
+        setRate(getRate() + increment);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the child subtrees of a step's rows concurrently for the blocking
+ * engines.  Each step may run up to its own parallelism of children at
+ * once, and all steps of all chains together may run up to maxRunning
+ * children on the shared pool.  When the pool is full, a child is run by
+ * the thread that found it instead, so a subtree that fans out again can
+ * never wait on permits held by its own ancestors.
+ */
+public class FanOut {
+    private Semaphore running;
+    private ExecutorService executor;
+
+    public FanOut(int maxRunning) {
+        running = new Semaphore(maxRunning);
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private AtomicInteger numThreads = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "fan-out-" + numThreads.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    /**
+     * The children of one execution of a step.  add() returns once the
+     * child has been started (or, if the pool is full, run), and await()
+     * returns once every child has finished.  Both wait uninterruptibly,
+     * like the blocking driver calls around them.
+     */
+    public class Children {
+        private Semaphore permits;
+        private int parallelism;
+        private volatile RuntimeException failure = null;
+
+        Children(int parallelism) {
+            this.parallelism = parallelism;
+            permits = new Semaphore(parallelism);
+        }
+
+        public void add(final Runnable child) {
+            permits.acquireUninterruptibly();
+            if (!running.tryAcquire()) {
+                try {
+                    child.run();
+                }
+                catch (RuntimeException e) {
+                    failure = e;
+                }
+                finally {
+                    permits.release();
+                }
+                return;
+            }
+            executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            child.run();
+                        }
+                        catch (RuntimeException e) {
+                            failure = e;
+                        }
+                        finally {
+                            running.release();
+                            permits.release();
+                        }
+                    }
+                });
+        }
+
+        /** Waits for every child, and rethrows the failure of one of them if any failed. */
+        public void await() {
+            permits.acquireUninterruptibly(parallelism);
+            permits.release(parallelism);
+            if (null != failure)
+                throw failure;
+        }
+    }
+
+    public Children children(int parallelism) {
+        return new Children(parallelism);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
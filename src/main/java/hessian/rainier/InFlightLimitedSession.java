@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Statement;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Holds an InFlightLimiter permit for the lifetime of each request.  Only
+ * the request for a statement's first page goes through this session: the
+ * driver fetches later pages itself, so they do not take a permit and are
+ * not counted against the cap.
+ */
+public class InFlightLimitedSession extends EnhancedSession {
+    private InFlightLimiter limiter;
+    private Runnable releaser;
+
+    public InFlightLimitedSession(Session inSession, InFlightLimiter inLimiter) {
+        super(inSession);
+        limiter = inLimiter;
+        releaser = new Runnable() {
+                @Override
+                public void run() {
+                    limiter.release();
+                }
+            };
+    }
+
+    public InFlightLimiter getLimiter() {
+        return limiter;
+    }
+
+    public ResultSet execute(Statement statement) {
+        limiter.acquire();
+        try {
+            return super.execute(statement);
+        }
+        finally {
+            limiter.release();
+        }
+    }
+
+    public ResultSet execute(String query) {
+        limiter.acquire();
+        try {
+            return super.execute(query);
+        }
+        finally {
+            limiter.release();
+        }
+    }
+
+    public ResultSet execute(String query, Object... values) {
+        limiter.acquire();
+        try {
+            return super.execute(query, values);
+        }
+        finally {
+            limiter.release();
+        }
+    }
+
+    public ResultSetFuture executeAsync(Statement statement) {
+        limiter.acquire();
+        try {
+            return releaseOnDone(super.executeAsync(statement));
+        }
+        catch (RuntimeException e) {
+            limiter.release();
+            throw e;
+        }
+    }
+
+    public ResultSetFuture executeAsync(String query) {
+        limiter.acquire();
+        try {
+            return releaseOnDone(super.executeAsync(query));
+        }
+        catch (RuntimeException e) {
+            limiter.release();
+            throw e;
+        }
+    }
+
+    public ResultSetFuture executeAsync(String query, Object... values) {
+        limiter.acquire();
+        try {
+            return releaseOnDone(super.executeAsync(query, values));
+        }
+        catch (RuntimeException e) {
+            limiter.release();
+            throw e;
+        }
+    }
+
+    private ResultSetFuture releaseOnDone(ResultSetFuture future) {
+        future.addListener(releaser, MoreExecutors.directExecutor());
+        return future;
+    }
+}
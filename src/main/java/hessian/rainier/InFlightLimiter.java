@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the number of requests outstanding against the cluster.  Callers
+ * block in acquire() once the cap is reached, and the limiter keeps track
+ * of how many callers are waiting and for how long, so the summary can
+ * show whether the client or the server is holding throughput back.
+ */
+public class InFlightLimiter {
+    private int maxInFlight;
+    private Semaphore available;
+    private AtomicInteger queueDepth;
+    private AtomicInteger maxQueueDepth;
+    private AtomicLong numAcquires;
+    private AtomicLong numWaits;
+    private AtomicLong totalWaitNanos;
+    private AtomicLong maxWaitNanos;
+
+    public InFlightLimiter(int inMaxInFlight) {
+        maxInFlight = inMaxInFlight;
+        available = new Semaphore(maxInFlight, true);
+        queueDepth = new AtomicInteger(0);
+        maxQueueDepth = new AtomicInteger(0);
+        numAcquires = new AtomicLong(0);
+        numWaits = new AtomicLong(0);
+        totalWaitNanos = new AtomicLong(0);
+        maxWaitNanos = new AtomicLong(0);
+    }
+
+    public void acquire() {
+        numAcquires.incrementAndGet();
+        if (available.tryAcquire())
+            return;
+        int depth = queueDepth.incrementAndGet();
+        updateMax(maxQueueDepth, depth);
+        long start = System.nanoTime();
+        available.acquireUninterruptibly();
+        long waited = System.nanoTime() - start;
+        queueDepth.decrementAndGet();
+        numWaits.incrementAndGet();
+        totalWaitNanos.addAndGet(waited);
+        updateMax(maxWaitNanos, waited);
+    }
+
+    /** Clears the counters, but not the requests currently in flight. */
+    public void reset() {
+        maxQueueDepth.set(queueDepth.get());
+        numAcquires.set(0);
+        numWaits.set(0);
+        totalWaitNanos.set(0);
+        maxWaitNanos.set(0);
+    }
+
+    public void release() {
+        available.release();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getInFlight() {
+        return maxInFlight - available.availablePermits();
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public long getNumAcquires() {
+        return numAcquires.get();
+    }
+
+    public long getNumWaits() {
+        return numWaits.get();
+    }
+
+    public double getMeanWaitMillis() {
+        long waits = numWaits.get();
+        return (waits > 0) ? totalWaitNanos.get() / (waits * 1000000.0) : 0;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1000000.0;
+    }
+
+    public String summary() {
+        long acquires = numAcquires.get();
+        long waits = numWaits.get();
+        return String.format("In-flight cap %d: %d requests, %d waited (%.2f%%), mean wait %.3f ms, max wait %.3f ms, max queue depth %d",
+                             maxInFlight, acquires, waits,
+                             (acquires > 0) ? (100.0 * waits) / acquires : 0,
+                             getMeanWaitMillis(), getMaxWaitMillis(), getMaxQueueDepth());
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int curr;
+        while (value > (curr = max.get())) {
+            if (max.compareAndSet(curr, value))
+                return;
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long curr;
+        while (value > (curr = max.get())) {
+            if (max.compareAndSet(curr, value))
+                return;
+        }
+    }
+}
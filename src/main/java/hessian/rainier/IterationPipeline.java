@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+
+/**
+ * Feeds iterations to a fixed pool of workers through a bounded queue.
+ * Tasks are only created when there is room in the queue, and results are
+ * summed as they complete, so memory use does not depend on the number of
+ * iterations.
+ *
+ * Alternatively, every iteration gets its own virtual thread, and a
+ * semaphore rather than the pool size bounds how many run at once.
+ *
+ * An iteration that only gets to start after the deadline, or after
+ * stop(), is skipped rather than run.
+ */
+public class IterationPipeline {
+    private ExecutorService executor;
+    private Semaphore running = null;
+    private LongAdder numChains;
+    private AtomicLong numCompleted;
+    private AtomicLong numFailed;
+    private AtomicLong numSkipped;
+    private AtomicReference<Throwable> firstFailure;
+    private volatile boolean stopped = false;
+    // The limit of the run in progress, which is told about dropped iterations
+    private volatile RunLimit runLimit = null;
+
+    public IterationPipeline(int numThreads, int queueSize) {
+        this(new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                                    new ArrayBlockingQueue<Runnable>(queueSize),
+                                    new BlockingPolicy()));
+    }
+
+    private IterationPipeline(ExecutorService executor) {
+        this.executor = executor;
+        numChains = new LongAdder();
+        numCompleted = new AtomicLong(0);
+        numFailed = new AtomicLong(0);
+        numSkipped = new AtomicLong(0);
+        firstFailure = new AtomicReference<>(null);
+    }
+
+    /**
+     * A pipeline that runs each iteration on a new virtual thread, with at
+     * most maxRunning iterations at once.  Virtual threads need Java 21, and
+     * are created reflectively since we build for Java 8.  On older JVMs this
+     * falls back to a thread per iteration from a cached pool.
+     */
+    public static IterationPipeline virtual(int maxRunning) {
+        ExecutorService executor;
+        try {
+            executor = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads are not available in Java " + System.getProperty("java.version")
+                               + ", using platform threads");
+            executor = Executors.newCachedThreadPool();
+        }
+        IterationPipeline pipeline = new IterationPipeline(executor);
+        pipeline.running = new Semaphore(maxRunning);
+        return pipeline;
+    }
+
+    public long run(RunLimit limit, final LongFunction<Callable<Long>> taskFactory)
+        throws InterruptedException {
+        runLimit = limit;
+        for (long iter = 0; limit.more(iter); iter++) {
+            final long taskIter = iter;
+            if (null != running)
+                running.acquire();
+            executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (stopped || limit.isOver()) {
+                                numSkipped.incrementAndGet();
+                                limit.skipped(1);
+                                return;
+                            }
+                            numChains.add(taskFactory.apply(taskIter).call());
+                            numCompleted.incrementAndGet();
+                        }
+                        catch (Throwable t) {
+                            numFailed.incrementAndGet();
+                            if (firstFailure.compareAndSet(null, t)) {
+                                System.err.println("Iteration " + taskIter + " failed: " + t.getMessage());
+                                t.printStackTrace();
+                            }
+                        }
+                        finally {
+                            if (null != running)
+                                running.release();
+                        }
+                    }
+                });
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(limit.getDrainTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+            System.err.println((limit.getNumRun() - numCompleted.get() - numFailed.get())
+                               + " iterations were still running at the end of the drain timeout");
+            executor.shutdownNow();
+        }
+        if (0 < numSkipped.get())
+            System.err.println(numSkipped.get() + " queued iterations were skipped because the run had ended");
+        return numChains.sum();
+    }
+
+    /**
+     * Drops the iterations still waiting in the queue, and makes any that
+     * are about to start skip.  Safe to call from any thread.
+     */
+    public void stop() {
+        stopped = true;
+        if (executor instanceof ThreadPoolExecutor) {
+            List<Runnable> dropped = new ArrayList<>();
+            ((ThreadPoolExecutor)executor).getQueue().drainTo(dropped);
+            numSkipped.addAndGet(dropped.size());
+            RunLimit limit = runLimit;
+            if (null != limit)
+                limit.skipped(dropped.size());
+        }
+    }
+
+    public long getNumCompleted() {
+        return numCompleted.get();
+    }
+
+    public long getNumFailed() {
+        return numFailed.get();
+    }
+
+    public long getNumSkipped() {
+        return numSkipped.get();
+    }
+
+    // Makes the producer wait for room in the queue instead of rejecting
+    private static class BlockingPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown())
+                throw new RejectedExecutionException("Executor has been shut down");
+            try {
+                executor.getQueue().put(r);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * How the lines of an argfile are chosen.  Every distribution returns a
+ * line number in [0, numLines) in constant (expected) time, with no
+ * per-line tables, so it works for files of any size.
+ *
+ * Distributions are given after the file name of an -argfile entry:
+ *   uniform                   every line equally likely (the default)
+ *   zipf(<exponent>)          line k with probability proportional to 1/(k+1)^exponent
+ *   hotspot(<traffic>,<keys>) a fraction traffic of the picks go to the first
+ *                             fraction keys of the lines, the rest uniformly to the others
+ *   gaussian(<mean>,<stddev>) normal around line mean*numLines, stddev given as a
+ *                             fraction of numLines [0.5,0.1]
+ *   sequential                each line in turn, with one cursor shared by all threads
+ */
+public abstract class KeyDistribution {
+    private static final Pattern specPattern = Pattern.compile("(\\w+)(?:\\((.*)\\))?");
+
+    protected long numLines;
+
+    protected KeyDistribution(long numLines) {
+        this.numLines = numLines;
+    }
+
+    public abstract long next(RandomStream random);
+
+    public static KeyDistribution parse(String spec, long numLines) {
+        if (null == spec)
+            return new Uniform(numLines);
+        Matcher m = specPattern.matcher(spec.trim());
+        if (!m.matches())
+            throw new IllegalArgumentException("Bad distribution: " + spec);
+        String name = m.group(1);
+        double[] args = new double[0];
+        if ((null != m.group(2)) && (0 < m.group(2).trim().length())) {
+            String[] fields = m.group(2).split(",");
+            args = new double[fields.length];
+            for (int i = 0; i < fields.length; i++)
+                args[i] = Double.parseDouble(fields[i].trim());
+        }
+        if ("uniform".equals(name) && (0 == args.length))
+            return new Uniform(numLines);
+        if ("zipf".equals(name) && (1 == args.length) && (0 < args[0]))
+            return new Zipf(numLines, args[0]);
+        if ("hotspot".equals(name) && (2 == args.length) && (0 <= args[0]) && (args[0] <= 1)
+            && (0 < args[1]) && (args[1] <= 1))
+            return new Hotspot(numLines, args[0], args[1]);
+        if ("gaussian".equals(name) && (0 == args.length))
+            return new Gaussian(numLines, 0.5, 0.1);
+        if ("gaussian".equals(name) && (2 == args.length) && (0 <= args[0]) && (args[0] <= 1) && (0 < args[1]))
+            return new Gaussian(numLines, args[0], args[1]);
+        if ("sequential".equals(name) && (0 == args.length))
+            return new Sequential(numLines);
+        throw new IllegalArgumentException("Bad distribution: " + spec);
+    }
+
+    public static class Uniform extends KeyDistribution {
+        public Uniform(long numLines) {
+            super(numLines);
+        }
+
+        public long next(RandomStream random) {
+            return random.nextLong(numLines);
+        }
+    }
+
+    /**
+     * Rejection-inversion sampling (Hormann and Derflinger, "Rejection-
+     * inversion to generate variates from monotone discrete distributions",
+     * 1996), which needs neither the normalizing constant nor a table and
+     * works for any positive exponent.
+     */
+    public static class Zipf extends KeyDistribution {
+        private double exponent;
+        private double hIntegralX1;
+        private double hIntegralNumLines;
+        private double s;
+
+        public Zipf(long numLines, double exponent) {
+            super(numLines);
+            this.exponent = exponent;
+            hIntegralX1 = hIntegral(1.5) - 1.0;
+            hIntegralNumLines = hIntegral(numLines + 0.5);
+            s = 2.0 - hIntegralInverse(hIntegral(2.5) - h(2.0));
+        }
+
+        public long next(RandomStream random) {
+            while (true) {
+                double u = hIntegralNumLines + random.nextDouble() * (hIntegralX1 - hIntegralNumLines);
+                double x = hIntegralInverse(u);
+                long k = (long)(x + 0.5);
+                if (k < 1)
+                    k = 1;
+                else if (k > numLines)
+                    k = numLines;
+                if ((k - x <= s) || (u >= hIntegral(k + 0.5) - h(k)))
+                    return k - 1;
+            }
+        }
+
+        private double h(double x) {
+            return Math.exp(-exponent * Math.log(x));
+        }
+
+        private double hIntegral(double x) {
+            double logX = Math.log(x);
+            return helper2((1.0 - exponent) * logX) * logX;
+        }
+
+        private double hIntegralInverse(double x) {
+            double t = x * (1.0 - exponent);
+            if (t < -1.0)
+                t = -1.0;
+            return Math.exp(helper1(t) * x);
+        }
+
+        // log(1+x)/x, accurate near 0
+        private static double helper1(double x) {
+            if (Math.abs(x) > 1e-8)
+                return Math.log1p(x) / x;
+            return 1.0 - x * (0.5 - x * (1.0 / 3.0 - 0.25 * x));
+        }
+
+        // (exp(x)-1)/x, accurate near 0
+        private static double helper2(double x) {
+            if (Math.abs(x) > 1e-8)
+                return Math.expm1(x) / x;
+            return 1.0 + x * 0.5 * (1.0 + x * (1.0 / 3.0) * (1.0 + 0.25 * x));
+        }
+    }
+
+    public static class Hotspot extends KeyDistribution {
+        private double hotTraffic;
+        private long numHot;
+
+        public Hotspot(long numLines, double hotTraffic, double hotKeys) {
+            super(numLines);
+            this.hotTraffic = hotTraffic;
+            numHot = Math.max(1, Math.min(numLines, (long)(hotKeys * numLines)));
+        }
+
+        public long next(RandomStream random) {
+            if ((numHot == numLines) || (random.nextDouble() < hotTraffic))
+                return random.nextLong(numHot);
+            return numHot + random.nextLong(numLines - numHot);
+        }
+    }
+
+    public static class Gaussian extends KeyDistribution {
+        private double mean;
+        private double stddev;
+
+        public Gaussian(long numLines, double mean, double stddev) {
+            super(numLines);
+            this.mean = mean * numLines;
+            this.stddev = stddev * numLines;
+        }
+
+        // Draws that fall outside the file are drawn again
+        public long next(RandomStream random) {
+            while (true) {
+                double x = Math.floor(mean + stddev * random.nextGaussian());
+                if ((0 <= x) && (x < numLines))
+                    return (long)x;
+            }
+        }
+    }
+
+    public static class Sequential extends KeyDistribution {
+        private AtomicLong cursor = new AtomicLong(0);
+
+        public Sequential(long numLines) {
+            super(numLines);
+        }
+
+        public long next(RandomStream random) {
+            return Math.floorMod(cursor.getAndIncrement(), numLines);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the latency of every BoundStatement whose PreparedStatement has
+ * been registered, into that statement's Recorder.  Every request, whether
+ * registered or not, is also counted and recorded into a session-wide
+ * Recorder that the adaptive rate limiters sample while the run is going.
+ * This session sits underneath the rate and in-flight limiters so that
+ * time spent waiting for a permit is not counted.  Only the request for
+ * the first page is recorded, since the driver fetches later pages
+ * without going through the session.  Statements must be registered
+ * before the run starts.
+ */
+public class LatencyRecordingSession extends EnhancedSession {
+    private Map<PreparedStatement,Recorder> recorders;
+    private Recorder allLatency;
+    private LongAdder numRequests;
+    private LongAdder numErrors;
+
+    public LatencyRecordingSession(Session inSession) {
+        super(inSession);
+        recorders = new IdentityHashMap<>();
+        allLatency = new Recorder(3);
+        numRequests = new LongAdder();
+        numErrors = new LongAdder();
+    }
+
+    public void register(PreparedStatement ps, Recorder recorder) {
+        recorders.put(ps, recorder);
+    }
+
+    /** Latency in microseconds of all requests completed since the last call. */
+    public Histogram getIntervalLatency() {
+        return allLatency.getIntervalHistogram();
+    }
+
+    public long getNumRequests() {
+        return numRequests.sum();
+    }
+
+    public long getNumErrors() {
+        return numErrors.sum();
+    }
+
+    private Recorder recorderFor(Statement statement) {
+        if (statement instanceof BoundStatement)
+            return recorders.get(((BoundStatement)statement).preparedStatement());
+        return null;
+    }
+
+    private void record(Recorder recorder, long start) {
+        long micros = (System.nanoTime() - start) / 1000;
+        allLatency.recordValue(micros);
+        if (null != recorder)
+            recorder.recordValue(micros);
+        numRequests.increment();
+    }
+
+    public ResultSet execute(Statement statement) {
+        Recorder recorder = recorderFor(statement);
+        long start = System.nanoTime();
+        try {
+            ResultSet rs = super.execute(statement);
+            record(recorder, start);
+            return rs;
+        }
+        catch (RuntimeException e) {
+            numRequests.increment();
+            numErrors.increment();
+            throw e;
+        }
+    }
+
+    public ResultSetFuture executeAsync(Statement statement) {
+        final Recorder recorder = recorderFor(statement);
+        final long start = System.nanoTime();
+        ResultSetFuture future = super.executeAsync(statement);
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet rs) {
+                    record(recorder, start);
+                }
+                @Override
+                public void onFailure(Throwable t) {
+                    numRequests.increment();
+                    numErrors.increment();
+                }
+            }, MoreExecutors.directExecutor());
+        return future;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Holds the 99th percentile request latency near a target.  Every
+ * howOften milliseconds it looks at the latency of the requests completed
+ * since the last check: above the target the rate is cut by
+ * downFraction, and below lowFraction of the target it is raised by
+ * upFraction.  In between, the rate is left alone.
+ */
+public class LatencyTargetRateLimiter extends AbstractDynamicRateLimiter {
+    private static final double percentile = 99.0;
+    private LatencyRecordingSession latencySession;
+
+    public LatencyTargetRateLimiter(double inRate, long inHowOften, double inTargetMillis,
+                                    double inLowFraction, double inDownFraction, double inUpFraction,
+                                    LatencyRecordingSession inLatencySession) {
+        super(inRate, inHowOften, inTargetMillis, inTargetMillis * inLowFraction,
+              inDownFraction, inUpFraction, false);
+        latencySession = inLatencySession;
+    }
+
+    // p99 in milliseconds of the requests since the last check
+    protected double getCurrStat() {
+        Histogram histogram = latencySession.getIntervalLatency();
+        if (0 == histogram.getTotalCount())
+            return Double.NaN;  // no requests, no change
+        return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+}
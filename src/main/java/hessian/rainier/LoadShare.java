@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * One process's part of a run spread over a coordinator and its agents.
+ * Process index of numShares runs every numShares-th iteration, starting
+ * at iteration index, at its part of the rate.  The coordinator sends each
+ * agent its share, so that -rate, -numIterations, -duration and -seed need
+ * only be given to the coordinator.
+ */
+public class LoadShare {
+    private int index;
+    private int numShares;
+    private int totalRate;
+    private long totalIterations;
+    private long duration;
+    private long seed;
+
+    private LoadShare(int index, int numShares, int totalRate, long totalIterations, long duration, long seed) {
+        this.index = index;
+        this.numShares = numShares;
+        this.totalRate = totalRate;
+        this.totalIterations = totalIterations;
+        this.duration = duration;
+        this.seed = seed;
+    }
+
+    public static LoadShare of(RainierParams params, int index, int numShares) {
+        return new LoadShare(index, numShares, params.rate, params.numIterations, params.duration, params.seed);
+    }
+
+    public static LoadShare readFrom(DataInputStream in) throws IOException {
+        return new LoadShare(in.readInt(), in.readInt(), in.readInt(), in.readLong(), in.readLong(), in.readLong());
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(index);
+        out.writeInt(numShares);
+        out.writeInt(totalRate);
+        out.writeLong(totalIterations);
+        out.writeLong(duration);
+        out.writeLong(seed);
+    }
+
+    // The remainder goes to the first processes, one each
+    private long part(long total) {
+        return total / numShares + ((index < total % numShares) ? 1 : 0);
+    }
+
+    /** Sets this process's part of the rate and iterations, and the run-wide duration and seed. */
+    public void applyTo(RainierParams params) {
+        params.rate = (int)Math.max(1, part(totalRate));
+        params.numIterations = part(totalIterations);
+        params.duration = duration;
+        params.seed = seed;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getNumShares() {
+        return numShares;
+    }
+
+    public int getTotalRate() {
+        return totalRate;
+    }
+
+    public String toString() {
+        return "share " + index + " of " + numShares + " (total rate " + totalRate + ", total iterations "
+            + totalIterations + ")";
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An argfile read through memory-mapped pages instead of loaded onto the
+ * heap.  The start of every stride-th line is kept in an index file next
+ * to the argfile (<argfile>.idx), built on first use and rebuilt whenever
+ * the argfile's size or modification time changes.  The index is mapped
+ * too, so heap use does not depend on the size of the file, and processes
+ * on the same machine share the pages of both.
+ *
+ * Line n is found by jumping to the indexed start of its stride and
+ * skipping the lines in between.  Lines are numbered the way
+ * Files.readAllLines numbers them, and a trailing \r is dropped.
+ */
+public class MappedArgFile {
+    private static final long magic = 0x52414e4944583031L; // "RANIDX01"
+    private static final int headerBytes = 40;
+    private static final int stride = 16;
+    private static final int chunkBits = 30;
+    private static final long chunkMask = (1L << chunkBits) - 1;
+
+    private Path path;
+    private long fileSize;
+    private long numLines;
+    private MappedByteBuffer[] chunks;
+    private MappedByteBuffer index;
+
+    private MappedArgFile(Path path) {
+        this.path = path;
+    }
+
+    /** Maps the argfile, or throws IllegalArgumentException if it has no lines. */
+    public static MappedArgFile open(String fname) throws IOException {
+        MappedArgFile argFile = new MappedArgFile(Paths.get(fname));
+        argFile.map();
+        return argFile;
+    }
+
+    private void map() throws IOException {
+        fileSize = Files.size(path);
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        Path indexPath = Paths.get(path.toString() + ".idx");
+        index = mapIndex(indexPath, lastModified);
+        if (null == index) {
+            System.err.println("Indexing argfile " + path);
+            buildIndex(indexPath, lastModified);
+            index = mapIndex(indexPath, lastModified);
+            if (null == index)
+                throw new IOException("Could not index argfile " + path);
+        }
+        numLines = index.getLong(32);
+        if (0 == numLines)
+            throw new IllegalArgumentException("Argfile " + path + " is empty");
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            chunks = new MappedByteBuffer[(int)((fileSize + chunkMask) >>> chunkBits)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = (long)i << chunkBits;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunkMask + 1, fileSize - start));
+            }
+        }
+    }
+
+    // Maps the index if it exists and matches the argfile, otherwise returns null
+    private MappedByteBuffer mapIndex(Path indexPath, long lastModified) throws IOException {
+        if (!Files.isRegularFile(indexPath) || (Files.size(indexPath) < headerBytes))
+            return null;
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Argfile " + path + " has too many lines to index");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if ((magic != buffer.getLong(0)) || (fileSize != buffer.getLong(8))
+                || (lastModified != buffer.getLong(16)) || (stride != buffer.getLong(24)))
+                return null;
+            long numBlocks = (buffer.getLong(32) + stride - 1) / stride;
+            if (channel.size() != headerBytes + 8 * numBlocks)
+                return null;
+
+            return buffer;
+        }
+    }
+
+    // Writes the index to a temporary file and moves it into place, so that
+    // other processes never see a partial index
+    private void buildIndex(Path indexPath, long lastModified) throws IOException {
+        Path dir = indexPath.toAbsolutePath().getParent();
+        Path tmpPath;
+        try {
+            tmpPath = Files.createTempFile(dir, indexPath.getFileName().toString(), ".tmp");
+        }
+        catch (IOException e) {
+            // The argfile's directory is not writable, so keep the index for this run only
+            tmpPath = Files.createTempFile(indexPath.getFileName().toString(), ".tmp");
+            indexPath = tmpPath;
+            new File(tmpPath.toString()).deleteOnExit();
+        }
+
+        long numLines = 0;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(tmpPath, StandardOpenOption.WRITE)) {
+            ByteBuffer inBuffer = ByteBuffer.allocateDirect(1 << 22);
+            ByteBuffer outBuffer = ByteBuffer.allocateDirect(1 << 16);
+            out.position(headerBytes);
+            boolean atLineStart = true;
+            long pos = 0;
+            while (0 <= in.read(inBuffer)) {
+                inBuffer.flip();
+                while (inBuffer.hasRemaining()) {
+                    byte b = inBuffer.get();
+                    if (atLineStart) {
+                        if (0 == numLines % stride) {
+                            if (!outBuffer.hasRemaining())
+                                writeFully(out, outBuffer);
+                            outBuffer.putLong(pos);
+                        }
+                        numLines++;
+                        atLineStart = false;
+                    }
+                    if ('\n' == b)
+                        atLineStart = true;
+                    pos++;
+                }
+                inBuffer.clear();
+            }
+            writeFully(out, outBuffer);
+
+            ByteBuffer header = ByteBuffer.allocate(headerBytes);
+            header.putLong(magic).putLong(fileSize).putLong(lastModified).putLong(stride).putLong(numLines);
+            header.flip();
+            out.position(0);
+            while (header.hasRemaining())
+                out.write(header);
+        }
+        if (indexPath != tmpPath)
+            Files.move(tmpPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    private byte byteAt(long pos) {
+        return chunks[(int)(pos >>> chunkBits)].get((int)(pos & chunkMask));
+    }
+
+    public long numLines() {
+        return numLines;
+    }
+
+    public String get(long line) {
+        long pos = index.getLong(headerBytes + 8 * (int)(line / stride));
+        for (long skip = line % stride; skip > 0; pos++) {
+            if ('\n' == byteAt(pos))
+                skip--;
+        }
+        long end = pos;
+        while ((end < fileSize) && ('\n' != byteAt(end)))
+            end++;
+        if ((end > pos) && ('\r' == byteAt(end - 1)))
+            end--;
+        byte[] bytes = new byte[(int)(end - pos)];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = byteAt(pos + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed-rate schedule of intended iteration start times.  Iteration i is
+ * meant to start at startNanos + i / rate seconds, whether or not earlier
+ * iterations have finished.  Latency measured from the intended start
+ * includes any time the iteration spent waiting behind a stalled cluster,
+ * which is the correction for coordinated omission.
+ */
+public class OpenLoopSchedule {
+    private long startNanos;
+    private double intervalNanos;
+
+    public OpenLoopSchedule(double rate) {
+        this(rate, System.nanoTime());
+    }
+
+    public OpenLoopSchedule(double rate, long inStartNanos) {
+        startNanos = inStartNanos;
+        intervalNanos = 1000000000.0 / rate;
+    }
+
+    public long intendedStart(long iter) {
+        return startNanos + (long)(iter * intervalNanos);
+    }
+
+    /** Waits until the intended start of iter, and returns that start time. */
+    public long awaitStart(long iter) {
+        long intended = intendedStart(iter);
+        long remaining;
+        while ((remaining = intended - System.nanoTime()) > 0)
+            LockSupport.parkNanos(remaining);
+        return intended;
+    }
+}
@@ -40,7 +40,29 @@ public class Rainier {
 
     private Cluster cluster = null;
     private RateLimitedSession session = null;
+    private CoalescingSession coalescingSession = null;
+    private BatchingSession batchingSession = null;
+    // The session the chains run on
+    private Session chainSession = null;
     private CodecRegistry codecRegistry = null;
+    private ValueBinder valueBinder = null;
+    private InFlightLimiter inFlightLimiter = null;
+    private LatencyRecordingSession latencySession = null;
+    private RateLimiter rateLimiter = null;
+    private ChainPlan plan = null;
+    private ArgumentSource argumentSource = null;
+    private ChainStats chainStats = null;
+    private ChainLog chainLog = null;
+    private FanOut fanOut = null;
+    private ResultCache resultCache = null;
+    private volatile Coordinator coordinator = null;
+    private Agent agent = null;
+    private LoadShare loadShare = null;
+    // The limit of the phase now running, so that a signal can stop it
+    private volatile RunLimit currentLimit = null;
+    private volatile IterationPipeline currentPipeline = null;
+    private volatile boolean interrupted = false;
+    private final CountDownLatch finished = new CountDownLatch(1);
 
     private String usage() {
         return "version: " + version + "\n"
@@ -114,10 +136,150 @@ public class Rainier {
         if (null == cluster) {
             throw new IOException("Could not create cluster");
         }
-        Session tsession = cluster.connect();
-        RateLimiter rateLimiter = new RateLimiter(params.rate);
+        latencySession = new LatencyRecordingSession(cluster.connect());
+        Session tsession = latencySession;
+        if (0 < params.maxInFlight) {
+            inFlightLimiter = new InFlightLimiter(params.maxInFlight);
+            tsession = new InFlightLimitedSession(tsession, inFlightLimiter);
+        }
+        rateLimiter = createRateLimiter();
         session = new RateLimitedSession(tsession, rateLimiter);
+        chainSession = session;
+        if (params.coalesce) {
+            coalescingSession = new CoalescingSession(session);
+            chainSession = coalescingSession;
+        }
+        if (1 < params.batchSize) {
+            batchingSession = new BatchingSession(chainSession, params.batchSize, (long)(params.batchLinger * 1000),
+                                                  "replica".equals(params.batchBy));
+            chainSession = batchingSession;
+        }
         codecRegistry = cluster.getConfiguration().getCodecRegistry();
+        if ("raw".equals(params.bindMode))
+            valueBinder = new RawValueBinder(codecRegistry, cluster.getConfiguration().getProtocolOptions().getProtocolVersion());
+        else
+            valueBinder = new TextValueBinder();
+    }
+
+    private RateLimiter createRateLimiter() {
+        // In open-loop mode -rate paces iterations, so requests are not throttled
+        if ("open".equals(params.loop))
+            return new RateLimiter(Double.MAX_VALUE);
+        if ("latency".equals(params.adaptive))
+            return new LatencyTargetRateLimiter(params.rate, params.adaptInterval, params.targetLatency,
+                                                0.8, 0.2, 0.05, latencySession);
+        if ("errors".equals(params.adaptive))
+            return new ErrorRateRateLimiter(params.rate, params.adaptInterval, params.maxErrorRate,
+                                            0.5, Math.max(1, params.rate * 0.01), latencySession);
+        if ("throughput".equals(params.adaptive))
+            return new ThroughputPlateauRateLimiter(params.rate, params.adaptInterval, 0.95, 0.8, 0.1,
+                                                    latencySession);
+        return new RateLimiter(params.rate);
+    }
+
+    // Process CPU time in nanoseconds, or -1 if the JVM does not expose it
+    private static long processCpuNanos() {
+        java.lang.management.OperatingSystemMXBean osBean = java.lang.management.ManagementFactory.getOperatingSystemMXBean();
+        if (osBean instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean)osBean).getProcessCpuTime();
+        return -1;
+    }
+
+    // Runs iterations on the chosen engine until limit stops them, and returns the number of chains run
+    private long runIterations(RunLimit limit, long masterSeed) throws InterruptedException {
+        limit.setDrainTimeout(params.drainTimeout * 1000);
+        currentLimit = limit;
+        if (interrupted)
+            limit.stop();
+        // A shared run schedules the global iteration numbers at the total rate
+        double openRate = (1 < limit.getNumShares()) ? loadShare.getTotalRate() : params.rate;
+        OpenLoopSchedule schedule = "open".equals(params.loop) ? new OpenLoopSchedule(openRate) : null;
+        long chains = 0;
+        // Async
+        if ("async".equals(params.engine)) {
+            AsyncChainExecutor asyncChainExecutor = new AsyncChainExecutor(chainSession, valueBinder, plan, argumentSource, chainStats, chainLog, params.minRepeat, params.maxRepeat, params.numThreads, params.maxChains);
+            asyncChainExecutor.setSchedule(schedule);
+            asyncChainExecutor.setResultCache(resultCache);
+            asyncChainExecutor.setMasterSeed(masterSeed);
+            chains = asyncChainExecutor.run(limit);
+            if (0 < asyncChainExecutor.getNumErrors())
+                System.err.println("There were " + asyncChainExecutor.getNumErrors() + " errors");
+        }
+        // Virtual threads, one per running iteration
+        else if ("virtual".equals(params.engine)) {
+            IterationPipeline pipeline = IterationPipeline.virtual(params.maxChains);
+            currentPipeline = pipeline;
+            chains = pipeline.run(limit,
+                                  iter -> new RainierTask(chainSession, valueBinder, plan, argumentSource, chainStats, chainLog, schedule, limit.globalIteration(iter), params.minRepeat, params.maxRepeat, iter).setFanOut(fanOut).setResultCache(resultCache).setMasterSeed(masterSeed));
+            if (0 < pipeline.getNumFailed())
+                System.err.println("There were " + pipeline.getNumFailed() + " failed iterations");
+        }
+        // Single Threaded
+        else if (1 == params.numThreads) {
+            // Run iterations
+            RainierTask rainierTask = new RainierTask(chainSession, valueBinder, plan, argumentSource, chainStats, chainLog, schedule, 0, params.minRepeat, params.maxRepeat, 0).setFanOut(fanOut).setResultCache(resultCache).setMasterSeed(masterSeed);
+            for (long iter = 0; limit.more(iter); iter++) {
+                chains += rainierTask.runIteration(limit.globalIteration(iter), 0L);
+            }
+        }
+        // Multi-Threaded
+        else {
+            IterationPipeline pipeline = new IterationPipeline(params.numThreads, 2 * params.numThreads);
+            currentPipeline = pipeline;
+            chains = pipeline.run(limit,
+                                  iter -> new RainierTask(chainSession, valueBinder, plan, argumentSource, chainStats, chainLog, schedule, limit.globalIteration(iter), params.minRepeat, params.maxRepeat, iter).setFanOut(fanOut).setResultCache(resultCache).setMasterSeed(masterSeed));
+            if (0 < pipeline.getNumFailed())
+                System.err.println("There were " + pipeline.getNumFailed() + " failed iterations");
+        }
+        return chains;
+    }
+
+    // Resets the peak heap and thread counts, so that clientMemory() covers just the run
+    private static void resetClientPeaks() {
+        for (java.lang.management.MemoryPoolMXBean pool : java.lang.management.ManagementFactory.getMemoryPoolMXBeans())
+            pool.resetPeakUsage();
+        java.lang.management.ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+    }
+
+    private String clientMemory() {
+        long peakHeap = 0;
+        for (java.lang.management.MemoryPoolMXBean pool : java.lang.management.ManagementFactory.getMemoryPoolMXBeans()) {
+            if (java.lang.management.MemoryType.HEAP == pool.getType())
+                peakHeap += pool.getPeakUsage().getUsed();
+        }
+        return String.format("Client memory (engine %s): peak heap %d MB, peak %d platform threads", params.engine,
+                             peakHeap / (1024 * 1024), java.lang.management.ManagementFactory.getThreadMXBean().getPeakThreadCount());
+    }
+
+    /**
+     * Runs on SIGINT/SIGTERM: stops starting iterations, then holds the JVM
+     * open while run() drains the running ones, writes the report and
+     * cleans up.
+     */
+    private void shutdown() {
+        stopRun();
+        Coordinator runningCoordinator = coordinator;
+        if (null != runningCoordinator)
+            runningCoordinator.stopAgents();
+        System.err.println("Interrupted: draining running iterations and writing the report");
+        try {
+            // A coordinator drains its own iterations, then waits for its agents to drain theirs
+            finished.await(2 * params.drainTimeout + 30, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            // exit anyway
+        }
+    }
+
+    // Stops starting iterations, now and in any phase still to come
+    private void stopRun() {
+        interrupted = true;
+        RunLimit limit = currentLimit;
+        if (null != limit)
+            limit.stop();
+        IterationPipeline pipeline = currentPipeline;
+        if (null != pipeline)
+            pipeline.stop();
     }
 
     private void cleanup() {
@@ -137,6 +299,20 @@ public class Rainier {
         }
         System.err.println("Params: " + params.toString());
 
+        // Share the run with other processes
+        if (0 < params.numAgents) {
+            coordinator = new Coordinator(params.coordinatorPort, params.numAgents);
+            loadShare = coordinator.accept(params);
+        }
+        else if (null != params.coordinator) {
+            agent = Agent.connect(params.coordinator, 60000);
+            loadShare = agent.receiveShare();
+        }
+        if (null != loadShare) {
+            loadShare.applyTo(params);
+            System.err.println("Running " + loadShare + ": rate " + params.rate + ", iterations " + params.numIterations);
+        }
+
         // setup
         setup();
 
@@ -151,40 +327,168 @@ public class Rainier {
             if (cmds.get(i).length() == 0) continue; // skip empty lines
             if (cmds.get(i).startsWith("#")) continue; // skip lines that start with # (for commenting)
             System.err.println(cmds.get(i));
-            preparedStatements.add(i, session.prepare(cmds.get(i)));
+            preparedStatements.add(session.prepare(cmds.get(i)));
         }
 
-        // Read argfile arguments
-        Map<String,List<String>> arglistmap = new HashMap<>();
-        for (String a : params.argfilemap.keySet()) {
-            arglistmap.put(a, Files.readAllLines(Paths.get(params.argfilemap.get(a))));
+        // Map argfiles and argtables
+        List<ArgTable> argTables = new ArrayList<>();
+        try {
+            for (String a : params.argfilemap.keySet())
+                argTables.add(ArgTable.column(a, params.argfilemap.get(a), params.argdistmap.get(a)));
+            for (String t : params.argtablemap.keySet())
+                argTables.add(ArgTable.withHeader(t, params.delimiter, params.argtablemap.get(t)));
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println("Error reading argfiles:\n" + e.getMessage());
+            cleanup();
+            return false;
         }
 
-        // Single Threaded
-        if (1 == params.numThreads) {
-            // Run iterations
-            Random random = new Random(0);
-            RainierTask rainierTask = new RainierTask(session, codecRegistry, preparedStatements, params.argmap, arglistmap, 0, params.minRepeat, params.maxRepeat, 0);
-            for (long iter = 0; iter < params.numIterations; iter++) {
-                rainierTask.runIteration( preparedStatements, params.argmap, arglistmap, iter, params.minRepeat, params.maxRepeat, session, codecRegistry, 0L);
+        // Compile the chain, so that every bind marker is known to have a source before we start
+        Set<String> argNames = new HashSet<>();
+        for (ArgTable argTable : argTables) {
+            for (String name : argTable.getNames()) {
+                if (!argNames.add(name)) {
+                    System.err.println("Argument " + name + " comes from more than one argfile or argtable");
+                    cleanup();
+                    return false;
+                }
             }
         }
-        // Multi-Threaded
-        else {
-            ExecutorService executor = Executors.newFixedThreadPool(params.numThreads);
-            Set<Future<Long>> results = new HashSet<>();
-            for (long iter = 0; iter < params.numIterations; iter++) {
-                Callable<Long> worker = new RainierTask(session, codecRegistry, preparedStatements, params.argmap, arglistmap, iter, params.minRepeat, params.maxRepeat, iter);
-                results.add(executor.submit(worker));
-            }
-            executor.shutdown();
-            long total = 0;
-            for (Future<Long> res : results) {
-                total += res.get();
-            }
-            System.out.println("Completed " + params.numIterations + " iterations, for a total of " + total + " total chains");
+        argNames.addAll(params.argmap.keySet());
+        try {
+            plan = ChainPlan.compile(preparedStatements, argNames, codecRegistry,
+                                     cluster.getConfiguration().getProtocolOptions().getProtocolVersion());
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println("Error compiling chain:\n" + e.getMessage());
+            cleanup();
+            return false;
+        }
+        plan.setFetchSizes(params.fetchSizes, cluster.getConfiguration().getQueryOptions().getFetchSize());
+        plan.setFanOuts(params.fanOuts);
+        fanOut = (null == params.fanOuts) ? null : new FanOut(params.maxFanOut);
+        argumentSource = new ArgumentSource(plan, params.argmap, argTables);
+        if (null != params.cacheSizes)
+            resultCache = new ResultCache(plan, params.cacheSizes, params.cacheTtl);
+        chainStats = new ChainStats(plan.numSteps());
+        for (int s = 0; s < plan.numSteps(); s++) {
+            PreparedStatement ps = plan.getStep(s).getPreparedStatement();
+            // Batched writes are timed from when they are queued until their batch finishes
+            boolean batched = (null != batchingSession) && !plan.getStep(s).isRead()
+                && batchingSession.register(ps, chainStats.getLatencyRecorder(s));
+            if (!batched)
+                latencySession.register(ps, chainStats.getLatencyRecorder(s));
+            if ((null != coalescingSession) && plan.getStep(s).isRead())
+                coalescingSession.register(ps);
         }
 
+        chainLog = new ChainLog(params.outputLevel, params.sampleEvery, 65536, System.out);
+        PrintStream summary = chainLog.summarizes() ? System.out : null;
+
+        // Warm up
+        String warmup = null;
+        if ((0 < params.warmupIterations) || (0 < params.warmupDuration)) {
+            long warmupStart = System.currentTimeMillis();
+            RunLimit warmupLimit = new RunLimit((0 < params.warmupIterations) ? params.warmupIterations : Long.MAX_VALUE,
+                                                params.warmupDuration * 1000);
+            // Warmup iterations get streams of their own, so the measured iterations are the same with or without it
+            long warmupChains = runIterations(warmupLimit, ~params.seed);
+            warmup = String.format("Warmup: %d iterations, %d chains in %d ms, not included below",
+                                   warmupLimit.getNumRun(), warmupChains,
+                                   System.currentTimeMillis() - warmupStart);
+            chainStats.reset();
+            if (null != inFlightLimiter)
+                inFlightLimiter.reset();
+            if (null != resultCache)
+                resultCache.reset();
+            if (null != coalescingSession)
+                coalescingSession.reset();
+            if (null != batchingSession)
+                batchingSession.reset();
+            if (null != summary)
+                summary.println(warmup + "; counters and histograms reset, measuring from here");
+        }
+
+        if (null != coordinator)
+            coordinator.start(1000);
+        else if (null != agent)
+            agent.awaitStart(this::stopRun);
+
+        long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        RateScheduler rateScheduler = null;
+        if (null != params.rateProfile) {
+            rateScheduler = new RateScheduler(params.rateProfile, rateLimiter, chainStats, summary);
+            if (null != loadShare)
+                rateScheduler.setScale(1.0 / loadShare.getNumShares());
+            rateScheduler.start();
+        }
+        resetClientPeaks();
+        long startCpu = processCpuNanos();
+        long startRequests = session.numAcquires();
+        RunLimit limit = new RunLimit(params.numIterations, params.duration * 1000);
+        if (null != loadShare)
+            limit.share(loadShare.getIndex(), loadShare.getNumShares());
+        long total = runIterations(limit, params.seed);
+        if (null != rateScheduler)
+            rateScheduler.stop();
+        if (null != fanOut)
+            fanOut.shutdown();
+        long elapsed = System.currentTimeMillis() - startTime;
+        chainLog.close();
+        // Iterations dropped from the queue once the run was over are not counted
+        long numIterations = limit.getNumRun();
+        List<String> agentResults = null;
+        if (null != agent) {
+            agent.sendResults(numIterations, total, elapsed, chainStats);
+        }
+        else if (null != coordinator) {
+            // Agents started with us, so they should be done within the drain timeout of the run's end
+            long agentWaitMillis = ((0 < params.duration) ? params.duration * 1000 : elapsed)
+                + params.drainTimeout * 1000 + 10000;
+            agentResults = coordinator.collect(chainStats, agentWaitMillis);
+            numIterations += coordinator.getNumIterations();
+            total += coordinator.getNumChains();
+        }
+        if (null == summary) {
+            cleanup();
+            return true;
+        }
+        double iterRate = (elapsed > 0) ? (numIterations * 1000.0) / elapsed : 0;
+        if (null != warmup)
+            summary.println(warmup);
+        if (null != agentResults) {
+            summary.println(String.format("Coordinator: %d iterations, %d chains in %d ms", limit.getNumRun(),
+                                          total - coordinator.getNumChains(), elapsed));
+            for (String line : agentResults)
+                summary.println(line);
+        }
+        summary.println("Completed " + numIterations + " iterations, for a total of " + total + " total chains");
+        summary.println(String.format("Engine %s: %d ms, %.2f iterations/sec", params.engine, elapsed, iterRate));
+        long windowMillis = (limit.getEndNanos() - startNanos) / 1000000;
+        summary.println(String.format("Measured window: %d ms%s, %.2f iterations/sec started, then %d ms draining",
+                                      windowMillis, limit.isStopped() ? " (interrupted)" : "",
+                                      (windowMillis > 0) ? (numIterations * 1000.0) / windowMillis : 0,
+                                      Math.max(0, elapsed - windowMillis)));
+        if (!"none".equals(params.adaptive))
+            summary.println(String.format("Adaptive (%s) rate at end of run: %.2f", params.adaptive, session.getRate()));
+        long cpuNanos = processCpuNanos() - startCpu;
+        long numRequests = session.numAcquires() - startRequests;
+        if ((0 <= startCpu) && (0 < numRequests))
+            summary.println(String.format("Client CPU (bindMode %s): %d ms, %.2f us/request",
+                                          params.bindMode, cpuNanos / 1000000, cpuNanos / (numRequests * 1000.0)));
+        summary.println(clientMemory());
+        if (null != inFlightLimiter)
+            summary.println(inFlightLimiter.summary());
+        if (null != coalescingSession)
+            summary.println(coalescingSession.summary());
+        if (null != batchingSession)
+            summary.println(batchingSession.summary());
+        chainStats.report(summary, plan);
+        if (null != resultCache)
+            resultCache.report(summary, numRequests);
+
         cleanup();
 
         return true;
@@ -194,7 +498,21 @@ public class Rainier {
         throws IOException, KeyStoreException, NoSuchAlgorithmException, UnrecoverableKeyException,
                CertificateException, KeyManagementException, InterruptedException, ExecutionException {
         Rainier rainier = new Rainier();
-        boolean success = rainier.run(args);
+        Thread shutdownHook = new Thread(rainier::shutdown, "rainier-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        boolean success;
+        try {
+            success = rainier.run(args);
+        }
+        finally {
+            rainier.finished.countDown();
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        }
+        catch (IllegalStateException e) {
+            // Already shutting down on a signal; the hook lets the JVM exit now that we are finished
+        }
         if (success) {
             System.exit(0);
         } else {
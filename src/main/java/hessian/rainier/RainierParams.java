@@ -6,6 +6,7 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class RainierParams {
@@ -24,10 +25,48 @@ public class RainierParams {
     public Map<String,String> argmap = new HashMap<>();
     private String argstring = null;
     public Map<String,String> argfilemap = new HashMap<>();
+    public Map<String,String> argdistmap = new HashMap<>();
+    private String argtable = null;
+    public Map<String,String> argtablemap = new LinkedHashMap<>();
+    public String delimiter = ",";
     public long numIterations = 1000;
+    private boolean numIterationsGiven = false;
+    public long duration = 0;
+    public long drainTimeout = 30;
+    public long warmupIterations = 0;
+    public long warmupDuration = 0;
     public int minRepeat = 1;
     public int maxRepeat = 1;
     public int rate = 50000;
+    public long seed = 0;
+    public String engine = "sync";
+    public int maxChains = 1000;
+    public int numAgents = 0;
+    public int coordinatorPort = 9142;
+    public String coordinator = null;
+    public int maxInFlight = 0;
+    public String bindMode = "text";
+    private String fetchSizeString = null;
+    public int[] fetchSizes = null;
+    private String fanOutString = null;
+    public int[] fanOuts = null;
+    public int maxFanOut = 1000;
+    private String cacheSizeString = null;
+    public int[] cacheSizes = null;
+    public long cacheTtl = 0;
+    public boolean coalesce = false;
+    public int batchSize = 1;
+    public double batchLinger = 1.0;
+    public String batchBy = "partition";
+    public String loop = "closed";
+    public String adaptive = "none";
+    public long adaptInterval = 1000;
+    public double targetLatency = 10;
+    public double maxErrorRate = 0.01;
+    private String rateProfileString = null;
+    public RateProfile rateProfile = null;
+    public ChainLog.Level outputLevel = ChainLog.Level.SUMMARY;
+    public int sampleEvery = 1000;
 
     public static String usage() {
         StringBuilder usage = new StringBuilder();
@@ -46,11 +85,59 @@ public class RainierParams {
         usage.append("  -numThreads <numThreads>       How many parallel queries to run [1]\n");
         usage.append("  -consistencyLevel <CL>         Consistency Level [LOCAL_ONE]\n");
         usage.append("  -arg <key:val,...>             List of key:value pairs of arguments [none]\n");
-        usage.append("  -argfile <arg:argfilename,...> List of argument file names [none]\n");
+        usage.append("  -argfile <arg:argfilename,...> List of argument file names, each optionally\n");
+        usage.append("                                 followed by :<distribution> [none]\n");
+        usage.append("  -argtable <filename,...>       Delimited files with a header naming the arguments\n");
+        usage.append("                                 each row fills, each optionally followed by\n");
+        usage.append("                                 :<distribution> [none]\n");
+        usage.append("  -delimiter <string>            Column delimiter for -argtable [,]\n");
         usage.append("  -numIterations <num>           Number of iterations to run [1000]\n");
+        usage.append("  -duration <sec>                Seconds to run, instead of -numIterations unless\n");
+        usage.append("                                 that is given too [0]\n");
+        usage.append("  -drainTimeout <sec>            Max seconds to wait for running iterations at the\n");
+        usage.append("                                 end of the run or on SIGINT/SIGTERM [30]\n");
+        usage.append("  -warmupIterations <num>        Iterations to run before measuring [0]\n");
+        usage.append("  -warmupDuration <sec>          Seconds to run before measuring [0]\n");
         usage.append("  -minRepeat <min>               Minimum number of times to repeat a run [1]\n");
         usage.append("  -maxRepeat <max>               Maximum number of times to repeat a run [1]\n");
-        usage.append("  -rate <tps>                    Query rate in transactions/sec [50000]\n");
+        usage.append("  -seed <num>                    Master seed for choosing arguments [0]\n");
+        usage.append("  -rate <tps>                    Query rate in transactions/sec, or iterations/sec\n");
+        usage.append("                                 with -loop open [50000]\n");
+        usage.append("  -engine <sync|async|virtual>   Blocking, executeAsync, or blocking on virtual\n");
+        usage.append("                                 threads chain engine [sync]\n");
+        usage.append("  -agents <num>                  Coordinate this many agent processes, sharing the\n");
+        usage.append("                                 rate and iterations with them [0]\n");
+        usage.append("  -coordinatorPort <port>        Port the coordinator listens on for agents [9142]\n");
+        usage.append("  -coordinator <host:port>       Run as an agent of this coordinator [none]\n");
+        usage.append("  -maxChains <num>               Max concurrent chains for the async and virtual\n");
+        usage.append("                                 engines [1000]\n");
+        usage.append("  -maxInFlight <num>             Max outstanding requests, 0 for no limit [0]\n");
+        usage.append("  -bindMode <text|raw>           Pass row values as CQL text or raw bytes [text]\n");
+        usage.append("  -fetchSize <num,...>           Page size, or one per statement, 0 for default [0]\n");
+        usage.append("  -fanOut <num,...>              Child subtrees of a statement's rows to run at\n");
+        usage.append("                                 once, or one per statement [1]\n");
+        usage.append("  -maxFanOut <num>               Max child subtrees running at once overall [1000]\n");
+        usage.append("  -cacheSize <num,...>           Client-side cache entries for SELECTs, or one per\n");
+        usage.append("                                 statement, 0 for no cache [0]\n");
+        usage.append("  -cacheTtl <ms>                 Time cached rows stay valid, 0 for no limit [0]\n");
+        usage.append("  -coalesce <true|false>         Share one request among identical SELECTs in\n");
+        usage.append("                                 flight at once [false]\n");
+        usage.append("  -batchSize <num>               Max writes per UNLOGGED batch, 1 for no batching [1]\n");
+        usage.append("  -batchLinger <ms>              Max time a write waits for its batch to fill [1.0]\n");
+        usage.append("  -batchBy <partition|replica>   Batch writes to the same partition, or to the\n");
+        usage.append("                                 same replicas [partition]\n");
+        usage.append("  -loop <closed|open>            Start iterations when a worker is free, or on a\n");
+        usage.append("                                 fixed schedule at -rate iterations/sec [closed]\n");
+        usage.append("  -adaptive <mode>               Adjust -rate while running: none, latency,\n");
+        usage.append("                                 errors or throughput [none]\n");
+        usage.append("  -adaptInterval <ms>            How often the adaptive rate is adjusted [1000]\n");
+        usage.append("  -targetLatency <ms>            p99 request latency for -adaptive latency [10]\n");
+        usage.append("  -maxErrorRate <fraction>       Error rate for -adaptive errors [0.01]\n");
+        usage.append("  -rateProfile <spec>            Vary -rate over time: ramp:<from>:<to>:<sec>,\n");
+        usage.append("                                 steps:<rate>@<sec>,..., burst:<base>:<peak>:\n");
+        usage.append("                                 <periodSec>:<burstSec> or file:<csv> [none]\n");
+        usage.append("  -output <level>                silent, summary, sampled or trace [summary]\n");
+        usage.append("  -sampleEvery <num>             Trace one chain in num with -output sampled [1000]\n");
         return usage.toString();
     }
 
@@ -69,6 +156,25 @@ public class RainierParams {
             return false;
         }
 
+        if (duration < 0) {
+            System.err.println("duration (" + duration + ") must not be negative.");
+            return false;
+        }
+
+        if ((0 < duration) && !numIterationsGiven)
+            numIterations = Long.MAX_VALUE;
+
+        if (drainTimeout < 1) {
+            System.err.println("drainTimeout (" + drainTimeout + ") must be greater than 0.");
+            return false;
+        }
+
+        if ((warmupIterations < 0) || (warmupDuration < 0)) {
+            System.err.println("warmupIterations (" + warmupIterations + ") and warmupDuration (" + warmupDuration
+                               + ") must not be negative.");
+            return false;
+        }
+
         if (minRepeat < 1) {
             System.err.println("minRepeat(" + minRepeat + ") must be greater than 0.");
             return false;
@@ -84,10 +190,165 @@ public class RainierParams {
             return false;
         }
 
+        if (!"sync".equals(engine) && !"async".equals(engine) && !"virtual".equals(engine)) {
+            System.err.println("engine (" + engine + ") must be one of sync, async or virtual.");
+            return false;
+        }
+
+        if (numAgents < 0) {
+            System.err.println("agents (" + numAgents + ") must not be negative.");
+            return false;
+        }
+
+        if ((0 < numAgents) && (null != coordinator)) {
+            System.err.println("A process cannot be both a coordinator (-agents) and an agent (-coordinator).");
+            return false;
+        }
+
+        if ((coordinatorPort < 1) || (coordinatorPort > 65535)) {
+            System.err.println("coordinatorPort (" + coordinatorPort + ") must be between 1 and 65535.");
+            return false;
+        }
+
+        if ((null != coordinator) && !coordinator.matches(".+:\\d+")) {
+            System.err.println("coordinator (" + coordinator + ") must be host:port.");
+            return false;
+        }
+
+        if (maxChains < 1) {
+            System.err.println("maxChains (" + maxChains + ") must be greater than 0.");
+            return false;
+        }
+
+        if (maxInFlight < 0) {
+            System.err.println("maxInFlight (" + maxInFlight + ") must not be negative.");
+            return false;
+        }
+
+        if (!"text".equals(bindMode) && !"raw".equals(bindMode)) {
+            System.err.println("bindMode (" + bindMode + ") must be one of text or raw.");
+            return false;
+        }
+
+        if (!"closed".equals(loop) && !"open".equals(loop)) {
+            System.err.println("loop (" + loop + ") must be one of closed or open.");
+            return false;
+        }
+
+        if (!"none".equals(adaptive) && !"latency".equals(adaptive)
+            && !"errors".equals(adaptive) && !"throughput".equals(adaptive)) {
+            System.err.println("adaptive (" + adaptive + ") must be one of none, latency, errors or throughput.");
+            return false;
+        }
+
+        if (!"none".equals(adaptive) && "open".equals(loop)) {
+            System.err.println("adaptive (" + adaptive + ") cannot be used with an open loop.");
+            return false;
+        }
+
+        if (adaptInterval < 1) {
+            System.err.println("adaptInterval (" + adaptInterval + ") must be greater than 0.");
+            return false;
+        }
+
+        if (targetLatency <= 0) {
+            System.err.println("targetLatency (" + targetLatency + ") must be greater than 0.");
+            return false;
+        }
+
+        if ((maxErrorRate < 0) || (maxErrorRate >= 1)) {
+            System.err.println("maxErrorRate (" + maxErrorRate + ") must be at least 0 and less than 1.");
+            return false;
+        }
+
+        if (sampleEvery < 1) {
+            System.err.println("sampleEvery (" + sampleEvery + ") must be greater than 0.");
+            return false;
+        }
+
+        if (null != rateProfileString) {
+            if (!"none".equals(adaptive) || "open".equals(loop)) {
+                System.err.println("rateProfile cannot be used with -adaptive or an open loop.");
+                return false;
+            }
+            try {
+                rateProfile = RateProfile.parse(rateProfileString);
+            }
+            catch (IOException | IllegalArgumentException e) {
+                System.err.println("Bad rateProfile (" + rateProfileString + "): " + e.getMessage());
+                return false;
+            }
+        }
+
+        if (null != fetchSizeString) {
+            String[] sizes = fetchSizeString.split(",");
+            fetchSizes = new int[sizes.length];
+            for (int i = 0; i < sizes.length; i++) {
+                fetchSizes[i] = Integer.parseInt(sizes[i].trim());
+                if (fetchSizes[i] < 0) {
+                    System.err.println("fetchSize (" + fetchSizes[i] + ") must not be negative.");
+                    return false;
+                }
+            }
+        }
+
+        if (null != fanOutString) {
+            String[] widths = fanOutString.split(",");
+            fanOuts = new int[widths.length];
+            for (int i = 0; i < widths.length; i++) {
+                fanOuts[i] = Integer.parseInt(widths[i].trim());
+                if (fanOuts[i] < 1) {
+                    System.err.println("fanOut (" + fanOuts[i] + ") must be greater than 0.");
+                    return false;
+                }
+            }
+        }
+
+        if (maxFanOut < 1) {
+            System.err.println("maxFanOut (" + maxFanOut + ") must be greater than 0.");
+            return false;
+        }
+
+        if (null != cacheSizeString) {
+            String[] sizes = cacheSizeString.split(",");
+            cacheSizes = new int[sizes.length];
+            for (int i = 0; i < sizes.length; i++) {
+                cacheSizes[i] = Integer.parseInt(sizes[i].trim());
+                if (cacheSizes[i] < 0) {
+                    System.err.println("cacheSize (" + cacheSizes[i] + ") must not be negative.");
+                    return false;
+                }
+            }
+        }
+
+        if (cacheTtl < 0) {
+            System.err.println("cacheTtl (" + cacheTtl + ") must not be negative.");
+            return false;
+        }
+
+        if (batchSize < 1) {
+            System.err.println("batchSize (" + batchSize + ") must be greater than 0.");
+            return false;
+        }
+
+        if (batchLinger <= 0) {
+            System.err.println("batchLinger (" + batchLinger + ") must be greater than 0.");
+            return false;
+        }
+
+        if (!"partition".equals(batchBy) && !"replica".equals(batchBy)) {
+            System.err.println("batchBy (" + batchBy + ") must be partition or replica.");
+            return false;
+        }
+
         if (!processArgfile()) {
             return false;
         }
 
+        if (!processArgtable()) {
+            return false;
+        }
+
         if (null != argstring) {
             String[] pairs = argstring.split(",");
             for (String pair : pairs) {
@@ -163,11 +424,45 @@ public class RainierParams {
         if (null != (tkey = amap.remove("-numThreads")))          numThreads = Integer.parseInt(tkey);
         if (null != (tkey = amap.remove("-consistencyLevel")))    consistencyLevel = ConsistencyLevel.valueOf(tkey);
         if (null != (tkey = amap.remove("-argfile")))             argfile = tkey;
+        if (null != (tkey = amap.remove("-argtable")))            argtable = tkey;
+        if (null != (tkey = amap.remove("-delimiter")))           delimiter = tkey;
         if (null != (tkey = amap.remove("-args")))                argstring = tkey;
-        if (null != (tkey = amap.remove("-numIterations")))       numIterations = Long.parseLong(tkey);
+        if (null != (tkey = amap.remove("-numIterations"))) {
+            numIterations = Long.parseLong(tkey);
+            numIterationsGiven = true;
+        }
+        if (null != (tkey = amap.remove("-duration")))            duration = Long.parseLong(tkey);
+        if (null != (tkey = amap.remove("-drainTimeout")))        drainTimeout = Long.parseLong(tkey);
+        if (null != (tkey = amap.remove("-warmupIterations")))    warmupIterations = Long.parseLong(tkey);
+        if (null != (tkey = amap.remove("-warmupDuration")))      warmupDuration = Long.parseLong(tkey);
         if (null != (tkey = amap.remove("-minRepeat")))           minRepeat = Integer.parseInt(tkey);
         if (null != (tkey = amap.remove("-maxRepeat")))           maxRepeat = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-seed")))                seed = Long.parseLong(tkey);
         if (null != (tkey = amap.remove("-rate")))                rate = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-engine")))              engine = tkey;
+        if (null != (tkey = amap.remove("-maxChains")))           maxChains = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-agents")))              numAgents = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-coordinatorPort")))     coordinatorPort = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-coordinator")))         coordinator = tkey;
+        if (null != (tkey = amap.remove("-maxInFlight")))         maxInFlight = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-bindMode")))            bindMode = tkey;
+        if (null != (tkey = amap.remove("-fetchSize")))           fetchSizeString = tkey;
+        if (null != (tkey = amap.remove("-fanOut")))              fanOutString = tkey;
+        if (null != (tkey = amap.remove("-maxFanOut")))           maxFanOut = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-cacheSize")))           cacheSizeString = tkey;
+        if (null != (tkey = amap.remove("-cacheTtl")))            cacheTtl = Long.parseLong(tkey);
+        if (null != (tkey = amap.remove("-coalesce")))            coalesce = Boolean.parseBoolean(tkey);
+        if (null != (tkey = amap.remove("-batchSize")))           batchSize = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-batchLinger")))         batchLinger = Double.parseDouble(tkey);
+        if (null != (tkey = amap.remove("-batchBy")))             batchBy = tkey;
+        if (null != (tkey = amap.remove("-loop")))                loop = tkey;
+        if (null != (tkey = amap.remove("-adaptive")))            adaptive = tkey;
+        if (null != (tkey = amap.remove("-adaptInterval")))       adaptInterval = Long.parseLong(tkey);
+        if (null != (tkey = amap.remove("-targetLatency")))       targetLatency = Double.parseDouble(tkey);
+        if (null != (tkey = amap.remove("-maxErrorRate")))        maxErrorRate = Double.parseDouble(tkey);
+        if (null != (tkey = amap.remove("-rateProfile")))         rateProfileString = tkey;
+        if (null != (tkey = amap.remove("-output")))              outputLevel = ChainLog.Level.valueOf(tkey.toUpperCase());
+        if (null != (tkey = amap.remove("-sampleEvery")))         sampleEvery = Integer.parseInt(tkey);
 
         return validateArgs();
     }
@@ -175,13 +470,24 @@ public class RainierParams {
     private boolean processArgfile() {
         if (null == argfile)
             return true;
-        String[] args = argfile.split(",");
+        // Split on commas, except those inside a distribution's parentheses
+        String[] args = argfile.split(",(?![^(]*\\))");
         for (String arg : args) {
-            String [] splits = arg.split(":");
-            if (2 !=  splits.length) {
+            String [] splits = arg.split(":", 3);
+            if (2 > splits.length) {
                 System.err.println("Error: bad argfile argument: " + arg);
                 return false;
             }
+            if (3 == splits.length) {
+                try {
+                    KeyDistribution.parse(splits[2], 1);
+                }
+                catch (IllegalArgumentException e) {
+                    System.err.println("Error: bad distribution in argfile argument: " + arg);
+                    return false;
+                }
+                argdistmap.put(splits[0], splits[2]);
+            }
             System.out.println("  " + splits[0] + " : " + splits[1]);
             if (Files.exists(Paths.get(splits[1]))) {
                 argfilemap.put(splits[0], splits[1]);
@@ -194,6 +500,34 @@ public class RainierParams {
         return true;
     }
 
+    private boolean processArgtable() {
+        if (null == argtable)
+            return true;
+        if (0 == delimiter.length()) {
+            System.err.println("delimiter must not be empty.");
+            return false;
+        }
+        for (String table : argtable.split(",(?![^(]*\\))")) {
+            String[] splits = table.split(":", 2);
+            if (2 == splits.length) {
+                try {
+                    KeyDistribution.parse(splits[1], 1);
+                }
+                catch (IllegalArgumentException e) {
+                    System.err.println("Error: bad distribution in argtable argument: " + table);
+                    return false;
+                }
+            }
+            System.out.println("  " + splits[0]);
+            if (!Files.exists(Paths.get(splits[0]))) {
+                System.err.println("Error: cannot find file " + splits[0]);
+                return false;
+            }
+            argtablemap.put(splits[0], (2 == splits.length) ? splits[1] : null);
+        }
+        return true;
+    }
+
     @Override
     public String toString() {
         return "RainierParams{" +
@@ -209,11 +543,42 @@ public class RainierParams {
                 ", numThreads=" + numThreads +
                 ", consistencyLevel=" + consistencyLevel +
                 ", argfile='" + argfile + '\'' +
+                ", argtable='" + argtable + '\'' +
+                ", delimiter='" + delimiter + '\'' +
                 ", argstring='" + argstring + '\'' +
                 ", numIterations=" + numIterations +
+                ", duration=" + duration +
+                ", drainTimeout=" + drainTimeout +
+                ", warmupIterations=" + warmupIterations +
+                ", warmupDuration=" + warmupDuration +
                 ", minRepeat=" + minRepeat +
                 ", maxRepeat=" + maxRepeat +
+                ", seed=" + seed +
                 ", rate=" + rate +
+                ", engine='" + engine + '\'' +
+                ", maxChains=" + maxChains +
+                ", numAgents=" + numAgents +
+                ", coordinatorPort=" + coordinatorPort +
+                ", coordinator='" + coordinator + '\'' +
+                ", maxInFlight=" + maxInFlight +
+                ", bindMode='" + bindMode + '\'' +
+                ", fetchSize='" + fetchSizeString + '\'' +
+                ", fanOut='" + fanOutString + '\'' +
+                ", maxFanOut=" + maxFanOut +
+                ", cacheSize='" + cacheSizeString + '\'' +
+                ", cacheTtl=" + cacheTtl +
+                ", coalesce=" + coalesce +
+                ", batchSize=" + batchSize +
+                ", batchLinger=" + batchLinger +
+                ", batchBy='" + batchBy + '\'' +
+                ", loop='" + loop + '\'' +
+                ", adaptive='" + adaptive + '\'' +
+                ", adaptInterval=" + adaptInterval +
+                ", targetLatency=" + targetLatency +
+                ", maxErrorRate=" + maxErrorRate +
+                ", rateProfile='" + rateProfileString + '\'' +
+                ", output=" + outputLevel +
+                ", sampleEvery=" + sampleEvery +
                 '}';
     }
 }
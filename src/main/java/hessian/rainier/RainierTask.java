@@ -2,87 +2,156 @@ package hessian.rainier;
 
 import com.datastax.driver.core.*;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
 import java.util.concurrent.Callable;
 
 public class RainierTask implements Callable<Long> {
     private Session session = null;
-    private CodecRegistry codecRegistry = null;
-    private List<PreparedStatement> preparedStatements = null;
-    private Map<String,String> arguments = null;
-    private Map<String,List<String>> arglistmap = null;
+    private ValueBinder valueBinder = null;
+    private ChainPlan plan = null;
+    private ArgumentSource argumentSource = null;
+    private ChainStats chainStats = null;
+    private ChainLog chainLog = null;
+    private boolean tracing = false;
+    private OpenLoopSchedule schedule = null;
+    private FanOut fanOut = null;
+    private ResultCache resultCache = null;
     private long seed = 0;
     private int minRepeat = 1;
     private int maxRepeat = 1;
     private long taskNum = 0;
-    private Random random = null;
+    private long masterSeed = 0;
+    // One stream per worker thread, reseeded for every iteration
+    private static final ThreadLocal<RandomStream> randoms = ThreadLocal.withInitial(() -> new RandomStream(0, 0));
 
-    public RainierTask(Session session, CodecRegistry codecRegistry, List<PreparedStatement> preparedStatements,
-                       Map<String, String> arguments, Map<String, List<String>> arglistmap, long seed, int minRepeat,
-                       int maxRepeat, long taskNum) {
+    public RainierTask(Session session, ValueBinder valueBinder, ChainPlan plan, ArgumentSource argumentSource,
+                       ChainStats chainStats, ChainLog chainLog, long seed, int minRepeat, int maxRepeat,
+                       long taskNum) {
         this.session = session;
-        this.codecRegistry = codecRegistry;
-        this.preparedStatements = preparedStatements;
-        this.arguments = arguments;
-        this.arglistmap = arglistmap;
+        this.valueBinder = valueBinder;
+        this.plan = plan;
+        this.argumentSource = argumentSource;
+        this.chainStats = chainStats;
+        this.chainLog = chainLog;
         this.seed = seed;
         this.minRepeat = minRepeat;
         this.maxRepeat = maxRepeat;
         this.taskNum = taskNum;
-        random = new Random(this.seed);
+    }
+
+    public RainierTask(Session session, ValueBinder valueBinder, ChainPlan plan, ArgumentSource argumentSource,
+                       ChainStats chainStats, ChainLog chainLog, OpenLoopSchedule schedule, long seed,
+                       int minRepeat, int maxRepeat, long taskNum) {
+        this(session, valueBinder, plan, argumentSource, chainStats, chainLog, seed, minRepeat, maxRepeat, taskNum);
+        this.schedule = schedule;
+    }
+
+    /** Runs the children of a step's rows concurrently, up to the step's fan-out. */
+    public RainierTask setFanOut(FanOut fanOut) {
+        this.fanOut = fanOut;
+        return this;
+    }
+
+    /** Reads the rows of cached statements from resultCache when it has them. */
+    public RainierTask setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+        return this;
+    }
+
+    /** Seeds the random stream of every iteration from masterSeed and the iteration number. */
+    public RainierTask setMasterSeed(long masterSeed) {
+        this.masterSeed = masterSeed;
+        return this;
     }
 
     public Long call() {
-        return (long)runIteration(preparedStatements, arguments, arglistmap, seed, minRepeat, maxRepeat, session, codecRegistry, taskNum);
+        return (long)runIteration(seed, taskNum);
     }
 
-    public void runChain(List<PreparedStatement> stmts, Map<String,String> args, Row row, Session session,
-                                CodecRegistry codecRegistry, long taskNum) {
-        if (null == stmts)
+    public void runChain(int step, Object[] env, Row row, long taskNum) {
+        if (step >= plan.numSteps())
             return;
-        if (stmts.size() < 1)
-            return;
-        PreparedStatement ps = stmts.get(0);
-        String cmd = ps.getQueryString();
-        System.out.println(String.format("[%5d] Running: %s", taskNum, cmd));
-        List<PreparedStatement> sublist = stmts.subList(1, stmts.size());
-        BoundStatement bs = ps.bind();
-        Map<String,String> myargs = new HashMap<>(args);
-        if (null != row) {
-            for (ColumnDefinitions.Definition cdef : row.getColumnDefinitions()) {
-                myargs.put(cdef.getName(), codecRegistry.codecFor(cdef.getType()).format(row.getObject(cdef.getName())));
-            }
+        ChainPlan.Step ps = plan.getStep(step);
+        Object[] myenv = (null == row) ? env : valueBinder.extend(plan.getStep(step - 1), env, row);
+        if (tracing) {
+            chainLog.trace("[%5d] Running: %s", taskNum, ps.getPreparedStatement().getQueryString());
+            chainLog.trace("[%5d] With variables: %s", taskNum, ChainLog.variables(plan, myenv));
         }
-        System.out.println(String.format("[%5d] With variables: %s", taskNum, myargs));
-        for (ColumnDefinitions.Definition cdef : ps.getVariables()) {
-            if (null == myargs.get(cdef.getName())) {
-                System.err.println(String.format("[%5d] Could not find value for key %s", taskNum, cdef.getName()));
-                System.exit(-1);  // TODO: Maybe do something better here?
+        boolean hasChildren = step + 1 < plan.numSteps();
+        FanOut.Children children = (hasChildren && (null != fanOut) && (1 < ps.getFanOut()))
+            ? fanOut.children(ps.getFanOut()) : null;
+        List<Object> cacheKey = null;
+        List<Row> cachedRows = null;
+        if ((null != resultCache) && resultCache.caches(step)) {
+            cacheKey = resultCache.key(ps, myenv);
+            cachedRows = resultCache.get(step, cacheKey);
+        }
+        long start = System.nanoTime();
+        int numRows = 0;
+        if (null != cachedRows) {
+            if (tracing)
+                chainLog.trace("[%5d] Cache hit: %d rows", taskNum, cachedRows.size());
+            for (Row r : cachedRows) {
+                numRows++;
+                runChild(children, step, myenv, r, taskNum);
             }
-            bs.set(cdef.getName(), codecRegistry.codecFor(cdef.getType()).parse(myargs.get(cdef.getName())), codecRegistry.codecFor(cdef.getType()).getJavaType().getRawType());
         }
-        List<Row> rows = session.execute(bs).all();
-        for (Row r : rows) {
-            runChain(sublist, myargs, r, session, codecRegistry, taskNum);
+        else {
+            BoundStatement bs = valueBinder.bind(ps, myenv);
+            ResultSet rs = session.execute(bs);
+            chainStats.recordExecution(step);
+            List<Row> rows = (null == cacheKey) ? null : new ArrayList<>();
+            // Stream the rows, fetching the next page in the background once the
+            // rows we have buffered drop to a single page
+            int fetchSize = ps.getEffectiveFetchSize();
+            for (Row r : rs) {
+                if (!rs.isFullyFetched() && rs.getAvailableWithoutFetching() <= fetchSize)
+                    rs.fetchMoreResults();
+                numRows++;
+                if (null != rows)
+                    rows.add(r);
+                runChild(children, step, myenv, r, taskNum);
+            }
+            chainStats.recordPages(step, rs.getAllExecutionInfo().size(), numRows);
+            if (null != rows)
+                resultCache.put(step, cacheKey, rows);
         }
+        if (null != children)
+            children.await();
+        if (hasChildren)
+            chainStats.recordSubtree(step, System.nanoTime() - start, numRows);
     }
 
-    public  int runIteration(List<PreparedStatement> preparedStatements, Map<String,String> args, Map<String,List<String>> arglistmap,
-                              long seed, int minRepeat, int maxRepeat, Session session, CodecRegistry codecRegistry, long taskNum) {
-        Map<String,String> arguments = new HashMap<>(args);
-        // Generate random arguments
-        for(String k : arglistmap.keySet()) {
-            arguments.put(k, arglistmap.get(k).get(random.nextInt(arglistmap.get(k).size())));
-        }
+    private void runChild(FanOut.Children children, int step, Object[] env, Row row, long taskNum) {
+        if (null == children)
+            runChain(step + 1, env, row, taskNum);
+        else
+            children.add(() -> runChain(step + 1, env, row, taskNum));
+    }
+
+    // seed is the iteration number, which picks the iteration's random stream
+    // and, in open-loop mode, its scheduled start
+    public int runIteration(long seed, long taskNum) {
+        long intended = (null == schedule) ? 0 : schedule.awaitStart(seed);
+        RandomStream random = randoms.get();
+        random.reseed(masterSeed, seed);
+        Object[] env = argumentSource.choose(random);
 
         int numRepeat = random.nextInt(maxRepeat - minRepeat + 1) + minRepeat;
+        tracing = chainLog.traces(seed);
         for (int r = 0; r < numRepeat; r++) {
             // Run chain
-            System.out.println(String.format("\n[%5d] Iter %d repeat %d", taskNum, seed, r));
-            runChain(preparedStatements, arguments, null, session, codecRegistry, taskNum);
+            if (tracing)
+                chainLog.trace("\n[%5d] Iter %d repeat %d", taskNum, seed, r);
+            long start = System.nanoTime();
+            runChain(0, env, null, taskNum);
+            long end = System.nanoTime();
+            chainStats.recordChainLatency(end - start);
+            if (null != schedule) {
+                // Only the first repeat is scheduled; later ones start when the previous one ends
+                chainStats.recordCorrectedChainLatency(end - ((0 == r) ? intended : start));
+            }
         }
         return numRepeat;
     }
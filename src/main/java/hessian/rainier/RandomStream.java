@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+/**
+ * A SplitMix64 generator (the one behind java.util.SplittableRandom) that
+ * can be reseeded in place.  Each iteration gets its own stream, derived
+ * from the master seed and the iteration number, so the arguments of an
+ * iteration are the same whichever engine or thread runs it.  A worker
+ * keeps one RandomStream and reseeds it for every iteration, so nothing is
+ * allocated and no state is shared between threads.
+ */
+public final class RandomStream {
+    private static final long goldenGamma = 0x9e3779b97f4a7c15L;
+    private long state;
+    private double nextNextGaussian;
+    private boolean haveNextNextGaussian = false;
+
+    public RandomStream(long masterSeed, long stream) {
+        reseed(masterSeed, stream);
+    }
+
+    public void reseed(long masterSeed, long stream) {
+        state = mix64(mix64(masterSeed) + stream * goldenGamma);
+        haveNextNextGaussian = false;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    public long nextLong() {
+        state += goldenGamma;
+        return mix64(state);
+    }
+
+    /** A value in [0, bound), from the high 32 bits scaled rather than taken modulo. */
+    public int nextInt(int bound) {
+        return (int)(((nextLong() >>> 32) * bound) >>> 32);
+    }
+
+    /** A value in [0, bound). */
+    public long nextLong(long bound) {
+        if (bound <= Integer.MAX_VALUE)
+            return nextInt((int)bound);
+        return Math.floorMod(nextLong(), bound);
+    }
+
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    // Marsaglia's polar method, as in java.util.Random
+    public double nextGaussian() {
+        if (haveNextNextGaussian) {
+            haveNextNextGaussian = false;
+            return nextNextGaussian;
+        }
+        double v1, v2, s;
+        do {
+            v1 = 2 * nextDouble() - 1;
+            v2 = 2 * nextDouble() - 1;
+            s = v1 * v1 + v2 * v2;
+        } while ((s >= 1) || (s == 0));
+        double multiplier = StrictMath.sqrt(-2 * StrictMath.log(s) / s);
+        nextNextGaussian = v2 * multiplier;
+        haveNextNextGaussian = true;
+        return v1 * multiplier;
+    }
+}
@@ -16,20 +16,43 @@
 package hessian.rainier;
 
 import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import com.codahale.metrics.Timer;
 import com.codahale.metrics.Snapshot;
 
+/**
+ * Token-bucket rate limiter that hands out permits without taking a lock.
+ * Each acquire reserves its slot on the timeline with a single
+ * compare-and-set on the bucket (the time the next permit becomes free
+ * and the permits stored up while idle), then sleeps until that slot
+ * arrives.  As with Guava's RateLimiter, the bucket starts empty and
+ * stores at most maxBurstSeconds of unused permits.  The clock starts at
+ * the first acquire, so time spent setting up does not store any.
+ *
+ * Acquires are counted in a LongAdder, and progress reports are printed by
+ * a separate reporter thread, so nothing on the acquire path synchronizes.
+ */
 public class RateLimiter {
-    private com.google.common.util.concurrent.RateLimiter rateLimiter;
-    private AtomicLong numAcquires;
+    private static final double maxBurstSeconds = 1.0;
+    private static final long reportCheckMillis = 100;
+    private volatile double rate;
+    private volatile double intervalNanos;
+    // null until the first acquire
+    private AtomicReference<Bucket> bucket;
+    private LongAdder numAcquires;
     private static long updateRate = 100000;
     private Timer timer;
     private PrintStream stream;
     private long lastVal;
     private long firstTime;
     private long lastTime;
+    private ScheduledExecutorService reporter = null;
 
     public RateLimiter(double inRate) {
         this(inRate, Long.MAX_VALUE);
@@ -41,17 +64,42 @@ public class RateLimiter {
 
     public RateLimiter(double inRate, long inUpdateRate,
                        Timer inTimer, PrintStream inStream) {
-        rateLimiter = com.google.common.util.concurrent.RateLimiter.create(inRate);
+        setRate(inRate);
+        bucket = new AtomicReference<>(null);
         updateRate = inUpdateRate;
         timer = inTimer;
         stream = inStream;
         if ((null != stream) && (null != timer)) {
             printHeader();
         }
-        numAcquires = new AtomicLong(0);
+        numAcquires = new LongAdder();
         lastTime = System.currentTimeMillis();
         firstTime = lastTime;
         lastVal = 0;
+        if (Long.MAX_VALUE != updateRate)
+            startReporter();
+    }
+
+    private void startReporter() {
+        reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "rate-reporter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        reporter.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    reportIfDue();
+                }
+            }, reportCheckMillis, reportCheckMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stopReporter() {
+        if (null != reporter)
+            reporter.shutdownNow();
     }
 
     protected void printHeader() {
@@ -89,7 +137,7 @@ public class RateLimiter {
         long etime = (currentTime - firstTime)/1000;
         double rateFromBeginning;
         if (null == currentVal) {
-            currentVal = numAcquires.get() - 1;
+            currentVal = numAcquires.sum() - 1;
             rateFromBeginning  = (etime > 0) ? (currentVal + 0.0) / etime : 0;
             System.err.println("Lines Processed: \t" + currentVal 
                                + "  Rate: \t" + rateFromBeginning);
@@ -106,71 +154,114 @@ public class RateLimiter {
         }
     }
 
-    protected synchronized void incrementAndReport(int permits) {
-        long currentVal = numAcquires.addAndGet(permits);
-        long currentTime = System.currentTimeMillis();
-        if (permits > currentVal % updateRate) {
+    // Runs on the reporter thread: report once each time the count passes a multiple of updateRate
+    protected void reportIfDue() {
+        long currentVal = numAcquires.sum();
+        if (currentVal / updateRate > lastVal / updateRate) {
+            long currentTime = System.currentTimeMillis();
             report(currentVal, currentTime);
             lastTime = currentTime;
             lastVal = currentVal;
         }
     }
 
+    protected void incrementAndReport(int permits) {
+        numAcquires.add(permits);
+    }
+
+    /**
+     * Reserves permits and returns how long the caller must wait for them,
+     * or -1 without reserving anything if that would be longer than
+     * maxWaitNanos.
+     */
+    protected long reserve(int permits, long maxWaitNanos) {
+        while (true) {
+            long now = System.nanoTime();
+            double interval = intervalNanos;
+            Bucket current = bucket.get();
+            long next = (null == current) ? now : current.nextFreeNanos;
+            double stored = (null == current) ? 0 : current.storedPermits;
+            if (now > next) {
+                // Idle since the last permit was due: store what went unused, up to the burst
+                stored = Math.min(maxBurstSeconds * rate, stored + (now - next) / interval);
+                next = now;
+            }
+            long wait = next - now;
+            if (wait > maxWaitNanos)
+                return -1;
+            double spent = Math.min(permits, stored);
+            Bucket updated = new Bucket(next + (long)((permits - spent) * interval), stored - spent);
+            if (bucket.compareAndSet(current, updated))
+                return wait;
+        }
+    }
+
+    private static void sleepNanos(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long remaining = nanos;
+        while (remaining > 0) {
+            LockSupport.parkNanos(remaining);
+            remaining = deadline - System.nanoTime();
+        }
+    }
+
     public void acquire() {
-        rateLimiter.acquire();
-        incrementAndReport(1);
+        acquire(1);
     }
 
     public void acquire(int permits) {
-        rateLimiter.acquire(permits);
+        sleepNanos(reserve(permits, Long.MAX_VALUE));
         incrementAndReport(permits);
     }
 
     public double getRate() {
-        return rateLimiter.getRate();
+        return rate;
     }
 
-    public synchronized void setRate(double permitsPerSecond) {
-        rateLimiter.setRate(permitsPerSecond);
+    public void setRate(double permitsPerSecond) {
+        if (!(permitsPerSecond > 0))
+            throw new IllegalArgumentException("rate must be positive");
+        rate = permitsPerSecond;
+        intervalNanos = 1000000000.0 / permitsPerSecond;
     }
 
     public String toString() {
-        return rateLimiter.toString();
+        return String.format("RateLimiter[stableRate=%3.1fqps]", rate);
     }
 
     public boolean tryAcquire() {
-        if (rateLimiter.tryAcquire()) {
-            incrementAndReport(1);
-            return true;
-        }
-        return false;
+        return tryAcquire(1, 0, TimeUnit.MICROSECONDS);
     }
 
     public boolean tryAcquire(int permits) {
-        if (rateLimiter.tryAcquire(permits)) {
-            incrementAndReport(permits);
-            return true;
-        }
-        return false;
+        return tryAcquire(permits, 0, TimeUnit.MICROSECONDS);
     }
 
     public boolean tryAcquire(int permits, long timeout, TimeUnit unit) {
-        if (rateLimiter.tryAcquire(permits, timeout, unit)) {
-            incrementAndReport(permits);
-            return true;
-        }
-        return false;
+        long wait = reserve(permits, unit.toNanos(Math.max(timeout, 0)));
+        if (wait < 0)
+            return false;
+        sleepNanos(wait);
+        incrementAndReport(permits);
+        return true;
     }
 
     public boolean tryAcquire(long timeout, TimeUnit unit) {
-        if (rateLimiter.tryAcquire(timeout, unit)) {
-            incrementAndReport(1);
-            return true;
-        }
-        return false;
+        return tryAcquire(1, timeout, unit);
     }
 
     public long numAcquires() {
-        return numAcquires.get();
+        return numAcquires.sum();
+    }
+
+    // Replaced as a whole on every acquire, so both fields always change together
+    private static final class Bucket {
+        private final long nextFreeNanos;
+        private final double storedPermits;
+
+        Bucket(long nextFreeNanos, double storedPermits) {
+            this.nextFreeNanos = nextFreeNanos;
+            this.storedPermits = storedPermits;
+        }
     }
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A target rate that changes over the course of a run, split into
+ * numbered phases so that latency can be reported per phase.  Time is in
+ * seconds from the start of the run.  Past the end of the profile the
+ * last rate holds.
+ *
+ * Profiles are given on the command line as:
+ *   ramp:<from>:<to>:<seconds>            linear ramp, reported as 10 phases
+ *   steps:<rate>@<seconds>,...            staircase, each rate held for its seconds
+ *   burst:<base>:<peak>:<period>:<length> base rate with a burst of length seconds
+ *                                         to peak at the start of every period
+ *   file:<filename>                       lines of <seconds>,<rate>, each rate held
+ *                                         until the next line's time, and the first
+ *                                         from the start of the run
+ *
+ * Rates, ramp lengths, burst periods and burst lengths must be greater
+ * than 0, and a burst must be shorter than its period.
+ */
+public abstract class RateProfile {
+    public abstract double rateAt(double seconds);
+    public abstract int phaseAt(double seconds);
+    public abstract String describePhase(int phase);
+
+    public static RateProfile parse(String spec) throws IOException {
+        int colon = spec.indexOf(':');
+        if (colon < 0)
+            throw new IllegalArgumentException("Bad rate profile: " + spec);
+        String type = spec.substring(0, colon);
+        String rest = spec.substring(colon + 1);
+        if ("ramp".equals(type)) {
+            double[] v = numbers(rest.split(":"), 3, spec);
+            positive(v[0], "rate", spec);
+            positive(v[1], "rate", spec);
+            positive(v[2], "ramp length", spec);
+            return new Ramp(v[0], v[1], v[2]);
+        }
+        if ("steps".equals(type)) {
+            List<double[]> steps = new ArrayList<>();
+            for (String step : rest.split(",")) {
+                double[] v = numbers(step.split("@"), 2, spec);
+                positive(v[0], "rate", spec);
+                steps.add(v);
+            }
+            return new Steps(steps);
+        }
+        if ("burst".equals(type)) {
+            double[] v = numbers(rest.split(":"), 4, spec);
+            positive(v[0], "rate", spec);
+            positive(v[1], "rate", spec);
+            positive(v[2], "burst period", spec);
+            positive(v[3], "burst length", spec);
+            if (v[3] >= v[2])
+                throw new IllegalArgumentException("The burst length must be less than the burst period in rate profile: " + spec);
+            return new Burst(v[0], v[1], v[2], v[3]);
+        }
+        if ("file".equals(type)) {
+            List<double[]> steps = new ArrayList<>();
+            double prevTime = 0;
+            // The first phase starts with the run, whatever time its line gives
+            double phaseStart = 0;
+            for (String line : Files.readAllLines(Paths.get(rest))) {
+                line = line.trim();
+                if ((line.length() == 0) || line.startsWith("#"))
+                    continue;
+                double[] v = numbers(line.split(","), 2, line);
+                positive(v[1], "rate", line);
+                if (v[0] < prevTime)
+                    throw new IllegalArgumentException("Times must not decrease in rate profile file: " + line);
+                if (!steps.isEmpty()) {
+                    steps.get(steps.size() - 1)[1] = v[0] - phaseStart;
+                    phaseStart = v[0];
+                }
+                steps.add(new double[]{v[1], Double.POSITIVE_INFINITY});
+                prevTime = v[0];
+            }
+            if (steps.isEmpty())
+                throw new IllegalArgumentException("Rate profile file is empty: " + rest);
+            return new Steps(steps);
+        }
+        throw new IllegalArgumentException("Unknown rate profile type: " + type);
+    }
+
+    private static double[] numbers(String[] fields, int count, String spec) {
+        if (fields.length != count)
+            throw new IllegalArgumentException("Bad rate profile: " + spec);
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = Double.parseDouble(fields[i].trim());
+            if (values[i] < 0)
+                throw new IllegalArgumentException("Negative value in rate profile: " + spec);
+        }
+        return values;
+    }
+
+    private static void positive(double value, String what, String spec) {
+        if (value <= 0)
+            throw new IllegalArgumentException("The " + what + " must be greater than 0 in rate profile: " + spec);
+    }
+
+    public static class Ramp extends RateProfile {
+        private static final int numPhases = 10;
+        private double from;
+        private double to;
+        private double seconds;
+
+        public Ramp(double from, double to, double seconds) {
+            this.from = from;
+            this.to = to;
+            this.seconds = seconds;
+        }
+
+        public double rateAt(double t) {
+            if (t >= seconds)
+                return to;
+            return from + (to - from) * (t / seconds);
+        }
+
+        public int phaseAt(double t) {
+            return Math.min(numPhases, (int)(numPhases * t / seconds));
+        }
+
+        public String describePhase(int phase) {
+            if (phase >= numPhases)
+                return String.format("hold at %.1f/s", to);
+            return String.format("ramp %d/%d, %.1f/s to %.1f/s", phase + 1, numPhases,
+                                 rateAt(phase * seconds / numPhases), rateAt((phase + 1) * seconds / numPhases));
+        }
+    }
+
+    // Each entry is {rate, holdSeconds}
+    public static class Steps extends RateProfile {
+        private double[] rates;
+        private double[] ends;
+
+        public Steps(List<double[]> steps) {
+            rates = new double[steps.size()];
+            ends = new double[steps.size()];
+            double end = 0;
+            for (int i = 0; i < steps.size(); i++) {
+                rates[i] = steps.get(i)[0];
+                end += steps.get(i)[1];
+                ends[i] = end;
+            }
+        }
+
+        public double rateAt(double t) {
+            return rates[phaseAt(t)];
+        }
+
+        public int phaseAt(double t) {
+            for (int i = 0; i < ends.length; i++) {
+                if (t < ends[i])
+                    return i;
+            }
+            return ends.length - 1;
+        }
+
+        public String describePhase(int phase) {
+            return String.format("step %d/%d at %.1f/s", phase + 1, rates.length, rates[phase]);
+        }
+    }
+
+    public static class Burst extends RateProfile {
+        private double base;
+        private double peak;
+        private double period;
+        private double length;
+
+        public Burst(double base, double peak, double period, double length) {
+            this.base = base;
+            this.peak = peak;
+            this.period = period;
+            this.length = length;
+        }
+
+        private boolean inBurst(double t) {
+            return (t % period) < length;
+        }
+
+        public double rateAt(double t) {
+            return inBurst(t) ? peak : base;
+        }
+
+        // Even phases are bursts, odd phases the base rate between them
+        public int phaseAt(double t) {
+            return 2 * (int)(t / period) + (inBurst(t) ? 0 : 1);
+        }
+
+        public String describePhase(int phase) {
+            return String.format("%s %d at %.1f/s", (0 == phase % 2) ? "burst" : "base", phase / 2 + 1,
+                                 (0 == phase % 2) ? peak : base);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import java.io.PrintStream;
+
+/**
+ * Drives a RateLimiter through a RateProfile from a background thread.
+ * The rate is updated every tickMillis, and at every phase boundary the
+ * boundary is logged and the latencies of the phase that just ended are
+ * reported.  With a null stream nothing is printed.
+ */
+public class RateScheduler implements Runnable {
+    private static final long tickMillis = 100;
+    private RateProfile profile;
+    private RateLimiter rateLimiter;
+    private ChainStats chainStats;
+    private PrintStream stream;
+    private double scale = 1.0;
+    private long startMillis;
+    private int phase = -1;
+    private volatile boolean running = true;
+    private Thread thread = null;
+
+    public RateScheduler(RateProfile inProfile, RateLimiter inRateLimiter, ChainStats inChainStats,
+                         PrintStream inStream) {
+        profile = inProfile;
+        rateLimiter = inRateLimiter;
+        chainStats = inChainStats;
+        stream = inStream;
+    }
+
+    /** Multiplies every rate of the profile, e.g. by this process's share of the run. */
+    public void setScale(double inScale) {
+        scale = inScale;
+    }
+
+    public void start() {
+        startMillis = System.currentTimeMillis();
+        tick();
+        thread = new Thread(this, "rate-scheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(tickMillis);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            tick();
+        }
+    }
+
+    private synchronized void tick() {
+        if (!running)
+            return;
+        double seconds = (System.currentTimeMillis() - startMillis) / 1000.0;
+        int currPhase = profile.phaseAt(seconds);
+        if (currPhase != phase) {
+            endPhase();
+            phase = currPhase;
+            if (null != stream)
+                stream.println(String.format("Phase %d (%s) starting at %.1f s", phase, profile.describePhase(phase),
+                                             seconds));
+        }
+        double rate = profile.rateAt(seconds) * scale;
+        if (rate > 0)
+            rateLimiter.setRate(rate);
+    }
+
+    private void endPhase() {
+        if ((phase >= 0) && (null != stream))
+            chainStats.reportInterval(stream, "Phase " + phase);
+    }
+
+    /** Stops the scheduler and reports the latencies of the last phase. */
+    public synchronized void stop() {
+        running = false;
+        if (null != thread)
+            thread.interrupt();
+        endPhase();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.TypeCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Carries the serialized bytes of each column straight into the next
+ * BoundStatement with setBytesUnsafe().  Nothing is formatted or parsed
+ * unless a column feeds a bind marker of a different type, in which case
+ * the value goes through the CQL literal like TextValueBinder.
+ */
+public class RawValueBinder implements ValueBinder {
+    private CodecRegistry codecRegistry;
+    private ProtocolVersion protocolVersion;
+
+    public RawValueBinder(CodecRegistry inCodecRegistry, ProtocolVersion inProtocolVersion) {
+        codecRegistry = inCodecRegistry;
+        protocolVersion = inProtocolVersion;
+    }
+
+    public Object[] extend(ChainPlan.Step step, Object[] env, Row row) {
+        Object[] myenv = env.clone();
+        for (int i = 0; i < step.numColumns(); i++) {
+            int slot = step.getColumnSlot(i);
+            if (slot >= 0)
+                myenv[slot] = row.getBytesUnsafe(i);
+        }
+        return myenv;
+    }
+
+    public BoundStatement bind(ChainPlan.Step step, Object[] env) {
+        BoundStatement bs = step.newBoundStatement();
+        for (int i = 0; i < step.numBindings(); i++) {
+            bs.setBytesUnsafe(i, serialize(env[step.getBindSlot(i)], step.getBindSourceType(i),
+                                           step.getBindType(i), step.getBindCodec(i)));
+        }
+        return bs;
+    }
+
+    protected ByteBuffer serialize(Object value, DataType sourceType, DataType type, TypeCodec<Object> codec) {
+        if (null == value)
+            return null;
+        if (value instanceof ByteBuffer) {
+            if (type.equals(sourceType))
+                return (ByteBuffer)value;
+            TypeCodec<Object> sourceCodec = codecRegistry.codecFor(sourceType);
+            value = sourceCodec.format(sourceCodec.deserialize((ByteBuffer)value, protocolVersion));
+        }
+        return codec.serialize(codec.parse(value.toString()), protocolVersion);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import com.datastax.driver.core.Row;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client-side read-through caches, one per SELECT statement, standing in
+ * for the local cache a service keeps in front of its lookups.  Entries
+ * are keyed by the statement's bound values and hold all of its rows, so
+ * a hit skips the query and still feeds the rows to the next step.  Each
+ * cache is bounded by a number of entries, evicting the least recently
+ * used, and entries can expire a fixed time after they were loaded.
+ */
+public class ResultCache {
+    private Cache<List<Object>,List<Row>>[] caches;
+    private int[] sizes;
+    private CacheStats[] baselines;
+    private LongAdder[] rowsSaved;
+
+    /**
+     * sizes are the entries per statement, with statements past the end
+     * of sizes using the last entry, and 0 for no cache.  ttlMillis of 0
+     * means entries never expire.
+     */
+    public ResultCache(ChainPlan plan, int[] sizes, long ttlMillis) {
+        int numSteps = plan.numSteps();
+        caches = newCaches(numSteps);
+        this.sizes = new int[numSteps];
+        baselines = new CacheStats[numSteps];
+        rowsSaved = new LongAdder[numSteps];
+        for (int s = 0; s < numSteps; s++) {
+            rowsSaved[s] = new LongAdder();
+            int size = sizes[Math.min(s, sizes.length - 1)];
+            if (0 == size)
+                continue;
+            if (!plan.getStep(s).isRead()) {
+                System.err.println("Not caching statement " + (s + 1) + ", which is not a SELECT: "
+                                   + plan.getStep(s).getPreparedStatement().getQueryString());
+                continue;
+            }
+            CacheBuilder<Object,Object> builder = CacheBuilder.newBuilder().maximumSize(size).recordStats();
+            if (0 < ttlMillis)
+                builder.expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS);
+            caches[s] = builder.build();
+            this.sizes[s] = size;
+            baselines[s] = caches[s].stats();
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Cache<List<Object>,List<Row>>[] newCaches(int n) {
+        return new Cache[n];
+    }
+
+    public boolean caches(int step) {
+        return null != caches[step];
+    }
+
+    /** The values bound to the statement's markers, as a cache key. */
+    public List<Object> key(ChainPlan.Step step, Object[] env) {
+        Object[] values = new Object[step.numBindings()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = env[step.getBindSlot(i)];
+        return Arrays.asList(values);
+    }
+
+    /** The cached rows for key, or null if they have to be read from the cluster. */
+    public List<Row> get(int step, List<Object> key) {
+        List<Row> rows = caches[step].getIfPresent(key);
+        if (null != rows)
+            rowsSaved[step].add(rows.size());
+        return rows;
+    }
+
+    public void put(int step, List<Object> key, List<Row> rows) {
+        caches[step].put(key, rows);
+    }
+
+    /** Forgets the statistics so far, e.g. at the end of a warmup.  The cached entries stay. */
+    public synchronized void reset() {
+        for (int s = 0; s < caches.length; s++) {
+            if (null != caches[s])
+                baselines[s] = caches[s].stats();
+            rowsSaved[s].reset();
+        }
+    }
+
+    /**
+     * Prints the hit rate and evictions of each cache, and how much of
+     * the load the cluster would otherwise have seen it saved, given the
+     * numRequests that were sent.
+     */
+    public synchronized void report(PrintStream stream, long numRequests) {
+        stream.println("Cache,Size,Entries,Lookups,Hits,HitRate,Evictions,RowsSaved");
+        long totalHits = 0;
+        for (int s = 0; s < caches.length; s++) {
+            if (null == caches[s])
+                continue;
+            CacheStats stats = caches[s].stats().minus(baselines[s]);
+            totalHits += stats.hitCount();
+            stream.println(String.format("Step %d,%d,%d,%d,%d,%.4f,%d,%d", s + 1, sizes[s], caches[s].size(),
+                                         stats.requestCount(), stats.hitCount(), stats.hitRate(),
+                                         stats.evictionCount(), rowsSaved[s].sum()));
+        }
+        long wouldBe = numRequests + totalHits;
+        stream.println(String.format("Cache saved %d of %d requests (%.2f%%)", totalHits, wouldBe,
+                                     (wouldBe > 0) ? (100.0 * totalHits) / wouldBe : 0));
+    }
+}
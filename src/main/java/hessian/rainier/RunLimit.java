@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * When a phase of the run stops starting new iterations: after a number
+ * of iterations, after a length of time, whichever comes first, or as
+ * soon as stop() is called (e.g. on SIGINT).  The clock starts when the
+ * RunLimit is created.  Engines ask more() before starting each
+ * iteration, in order, from a single thread.  Once no more iterations
+ * are started, engines wait up to the drain timeout for the ones still
+ * running.
+ */
+public class RunLimit {
+    private long numIterations;
+    private boolean timed;
+    private long deadlineNanos;
+    private long numStarted = 0;
+    private LongAdder numSkipped = new LongAdder();
+    private long endNanos = 0;
+    private long drainTimeoutMillis = Long.MAX_VALUE;
+    private volatile boolean stopped = false;
+    private long firstIteration = 0;
+    private int numShares = 1;
+
+    /** A durationMillis of 0 means no time limit. */
+    public RunLimit(long numIterations, long durationMillis) {
+        this.numIterations = numIterations;
+        timed = (0 < durationMillis);
+        deadlineNanos = System.nanoTime() + durationMillis * 1000000L;
+    }
+
+    public static RunLimit iterations(long numIterations) {
+        return new RunLimit(numIterations, 0);
+    }
+
+    /**
+     * Makes this the part of the run done by process index of numShares:
+     * iteration i here is iteration index + i * numShares of the whole run.
+     */
+    public RunLimit share(int index, int numShares) {
+        this.firstIteration = index;
+        this.numShares = numShares;
+        return this;
+    }
+
+    public int getNumShares() {
+        return numShares;
+    }
+
+    /** The number of iteration iter in the whole run, which picks its random stream. */
+    public long globalIteration(long iter) {
+        return firstIteration + iter * numShares;
+    }
+
+    public RunLimit setDrainTimeout(long drainTimeoutMillis) {
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        return this;
+    }
+
+    public long getDrainTimeoutMillis() {
+        return drainTimeoutMillis;
+    }
+
+    /** Stops new iterations from starting.  Safe to call from any thread. */
+    public void stop() {
+        stopped = true;
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Whether an iteration that was let in by more() but has not started
+     * yet should be skipped: stop() was called or the deadline has passed.
+     * Safe to call from any thread.
+     */
+    public boolean isOver() {
+        return stopped || (timed && (System.nanoTime() - deadlineNanos >= 0));
+    }
+
+    public boolean more(long iter) {
+        if (stopped || (iter >= numIterations) || (timed && (System.nanoTime() - deadlineNanos >= 0))) {
+            if (0 == endNanos)
+                endNanos = System.nanoTime();
+            return false;
+        }
+        numStarted = iter + 1;
+        return true;
+    }
+
+    public long getNumStarted() {
+        return numStarted;
+    }
+
+    /**
+     * Records iterations that more() let in but that never ran because the
+     * run was over by the time they would have started.  Safe to call from
+     * any thread.
+     */
+    public void skipped(long n) {
+        numSkipped.add(n);
+    }
+
+    /** The iterations that actually ran: those started, less those skipped. */
+    public long getNumRun() {
+        return numStarted - numSkipped.sum();
+    }
+
+    /** When more() first returned false, from System.nanoTime(). */
+    public long getEndNanos() {
+        return endNanos;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.exceptions.DriverInternalError;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A ResultSetFuture completed by the session that handed it out, for
+ * requests that do not map one to one onto requests to the cluster.
+ */
+public class SettableResultSetFuture extends AbstractFuture<ResultSet> implements ResultSetFuture {
+    @Override
+    public boolean set(ResultSet rs) {
+        return super.set(rs);
+    }
+
+    @Override
+    public boolean setException(Throwable t) {
+        return super.setException(t);
+    }
+
+    public ResultSet getUninterruptibly() {
+        try {
+            return Uninterruptibles.getUninterruptibly(this);
+        }
+        catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        }
+    }
+
+    public ResultSet getUninterruptibly(long timeout, TimeUnit unit) throws TimeoutException {
+        try {
+            return Uninterruptibles.getUninterruptibly(this, timeout, unit);
+        }
+        catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        }
+    }
+
+    // As the driver does, rethrow a copy so the stack trace shows this caller
+    private static RuntimeException propagate(Throwable cause) {
+        if (cause instanceof DriverException)
+            return ((DriverException)cause).copy();
+        if (cause instanceof RuntimeException)
+            return (RuntimeException)cause;
+        return new DriverInternalError("Unexpected error", cause);
+    }
+}
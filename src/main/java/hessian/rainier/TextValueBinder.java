@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.TypeCodec;
+
+/**
+ * Formats every column as a CQL literal and parses it again for the next
+ * statement.  Slow, but it lets a column feed a bind marker of any type
+ * that accepts the same literal.
+ */
+public class TextValueBinder implements ValueBinder {
+    public Object[] extend(ChainPlan.Step step, Object[] env, Row row) {
+        Object[] myenv = env.clone();
+        for (int i = 0; i < step.numColumns(); i++) {
+            int slot = step.getColumnSlot(i);
+            if (slot >= 0)
+                myenv[slot] = step.getColumnCodec(i).format(row.get(i, step.getColumnCodec(i)));
+        }
+        return myenv;
+    }
+
+    public BoundStatement bind(ChainPlan.Step step, Object[] env) {
+        BoundStatement bs = step.newBoundStatement();
+        for (int i = 0; i < step.numBindings(); i++) {
+            TypeCodec<Object> codec = step.getBindCodec(i);
+            Object value = env[step.getBindSlot(i)];
+            bs.set(i, (null == value) ? null : codec.parse(value.toString()), codec);
+        }
+        return bs;
+    }
+}
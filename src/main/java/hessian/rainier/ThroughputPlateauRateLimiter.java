@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+/**
+ * Raises the rate for as long as the cluster keeps up with it, and drops
+ * back to what the cluster actually delivered once it stops keeping up.
+ * Every howOften milliseconds the completed requests per second since the
+ * last check are compared with the current rate.  At or above
+ * keepUpFraction of the rate, the rate is raised by upFraction.  Below
+ * fallBehindFraction, the rate is set to the measured throughput, which is
+ * the plateau.
+ */
+public class ThroughputPlateauRateLimiter extends AbstractDynamicRateLimiter {
+    private LatencyRecordingSession latencySession;
+    private long lastRequests = 0;
+    private long lastNanos;
+    private double lastThroughput = 0;
+
+    public ThroughputPlateauRateLimiter(double inRate, long inHowOften, double inKeepUpFraction,
+                                        double inFallBehindFraction, double inUpFraction,
+                                        LatencyRecordingSession inLatencySession) {
+        super(inRate, inHowOften, inKeepUpFraction, inFallBehindFraction, 0, inUpFraction, true);
+        latencySession = inLatencySession;
+        lastNanos = System.nanoTime();
+    }
+
+    // Completed requests per second since the last check, as a fraction of the current rate
+    protected synchronized double getCurrStat() {
+        long requests = latencySession.getNumRequests();
+        long now = System.nanoTime();
+        double seconds = (now - lastNanos) / 1000000000.0;
+        if ((seconds <= 0) || (requests == lastRequests))
+            return Double.NaN;  // no requests, no change
+        lastThroughput = (requests - lastRequests) / seconds;
+        lastRequests = requests;
+        lastNanos = now;
+        return lastThroughput / getRate();
+    }
+
+    protected synchronized boolean statTooHigh(double currStat) {
+        return currStat >= maxStat;
+    }
+
+    protected synchronized void adjustRateDown() {
+        if (lastThroughput > 0)
+            setRate(lastThroughput);
+    }
+}
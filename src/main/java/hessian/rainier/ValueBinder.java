@@ -0,0 +1,31 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package hessian.rainier;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Row;
+
+/**
+ * Carries values from the rows of one chain step into the bind markers of
+ * the next.  Variables live in an Object[] indexed by ChainPlan slot.
+ * Arguments given with -args and -argfile start out as Strings; what a row
+ * contributes depends on the implementation.
+ */
+public interface ValueBinder {
+    /** Returns a copy of env with the columns of row, which was returned by step, stored in their slots. */
+    public Object[] extend(ChainPlan.Step step, Object[] env, Row row);
+    public BoundStatement bind(ChainPlan.Step step, Object[] env);
+}